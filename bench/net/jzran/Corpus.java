@@ -0,0 +1,83 @@
+package net.jzran;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressible data for the benchmarks, resembling what jzran is used on:
+ * text logs, which deflate about 5:1, and binary records, which deflate
+ * about 2:1. Data of a given kind, size and seed is always the same.
+ */
+class Corpus {
+    static final String LOG = "log";
+    static final String RECORDS = "records";
+
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+    private static final String[] LOGGERS = {
+            "net.jzran.server.RequestHandler", "net.jzran.server.SessionManager",
+            "net.jzran.storage.BlockCache", "net.jzran.storage.Compactor"};
+    private static final String[] PATHS = {"/api/items/", "/api/users/", "/static/img/", "/search?q="};
+
+    final byte[] data;
+    final byte[] zipped;
+
+    Corpus(String kind, int size, long seed) throws IOException {
+        if (LOG.equals(kind))
+            data = log(size, new Random(seed));
+        else if (RECORDS.equals(kind))
+            data = records(size, new Random(seed));
+        else
+            throw new IllegalArgumentException("Unknown corpus: " + kind);
+        zipped = gzip(data);
+    }
+
+    private static byte[] log(int size, Random r) {
+        StringBuilder sb = new StringBuilder(size + 256);
+        long millis = 1500000000000L;
+        while (sb.length() < size) {
+            millis += r.nextInt(50);
+            sb.append(millis / 1000).append('.').append(String.valueOf(1000 + millis % 1000).substring(1))
+                    .append(' ').append(LEVELS[r.nextInt(LEVELS.length)])
+                    .append(" [worker-").append(r.nextInt(16)).append("] ")
+                    .append(LOGGERS[r.nextInt(LOGGERS.length)])
+                    .append(" - request ").append(r.nextInt(1000000))
+                    .append(' ').append(PATHS[r.nextInt(PATHS.length)]).append(r.nextInt(10000))
+                    .append(" completed in ").append((int) Math.abs(r.nextGaussian() * 40)).append(" ms")
+                    .append(" status=").append(r.nextInt(20) == 0 ? 500 : 200)
+                    .append('\n');
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /* 32-byte records: timestamp, id, kind, two counters and a measurement */
+    private static byte[] records(int size, Random r) {
+        ByteBuffer buf = ByteBuffer.allocate(size + 32);
+        long time = 1500000000000L;
+        long id = 0;
+        while (buf.position() < size) {
+            time += r.nextInt(1000);
+            id += 1 + r.nextInt(3);
+            buf.putLong(time).putLong(id)
+                    .putShort((short) r.nextInt(8))
+                    .putShort((short) r.nextInt(100))
+                    .putInt(r.nextInt(1 << 16))
+                    .putDouble(Math.round(r.nextGaussian() * 10000) / 100.0);
+        }
+        byte[] res = new byte[size];
+        System.arraycopy(buf.array(), 0, res, 0, size);
+        return res;
+    }
+
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2);
+        GZIPOutputStream gzos = new GZIPOutputStream(bos, 65536);
+        gzos.write(data);
+        gzos.close();
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,62 @@
+package net.jzran;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building an index, in MB of decompressed data per second (the "mb"
+ * counter), for spans from dense to sparse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexBenchmark {
+    @Param({Corpus.LOG, Corpus.RECORDS})
+    public String corpus;
+
+    @Param({"64"})
+    public int sizeMb;
+
+    @Param({"65536", "1048576", "8388608"})
+    public long span;
+
+    private Corpus data;
+
+    /**
+     * Decompressed megabytes indexed, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Megabytes {
+        public double mb;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        data = new Corpus(corpus, sizeMb << 20, 1);
+    }
+
+    @Benchmark
+    public RandomAccessGZip.Index index(Megabytes counter) throws IOException {
+        RandomAccessGZip.Index res = RandomAccessGZip.index(new ByteArrayInputStream(data.zipped), span);
+        counter.mb += data.data.length / 1048576.0;
+        return res;
+    }
+}
@@ -0,0 +1,102 @@
+package net.jzran;
+
+import com.sun.jna.Memory;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An extractor on each inflate backend: "java" against the native ones.
+ * inflate reads all of the decompressed data, in MB per second (the "mb"
+ * counter); seek is the latency of a seek to a random offset and a small
+ * read after it.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class InflateBenchmark {
+    private static final int OFFSETS = 1024;
+
+    @Param({"jna", "java"})
+    public String backend;
+
+    @Param({Corpus.LOG, Corpus.RECORDS})
+    public String corpus;
+
+    @Param({"64"})
+    public int sizeMb;
+
+    @Param({"1048576"})
+    public long span;
+
+    private CheckpointTable index;
+    private ZRan.Extractor extractor;
+    private long size;
+    private final Memory buf = new Memory(65536);
+    private final long[] offsets = new long[OFFSETS];
+    private int next;
+
+    /**
+     * Decompressed megabytes read, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Megabytes {
+        public double mb;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        Corpus data = new Corpus(corpus, sizeMb << 20, 1);
+        size = data.data.length;
+        index = ZRan.build_index(new ByteArrayInputStream(data.zipped), span, Long.MAX_VALUE, new long[3],
+                new NullProgressListener(), false);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(data.zipped, 0, data.zipped.length);
+        extractor = new ZRan.Extractor(sis, InflateStream.raw(backend));
+        Random r = new Random(1);
+        for (int i = 0; i < OFFSETS; ++i)
+            offsets[i] = (long) (r.nextDouble() * (size - 64));
+    }
+
+    @TearDown
+    public void tearDown() {
+        extractor.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long inflate(Megabytes counter) throws IOException {
+        extractor.seek(index, 0);
+        long total = 0;
+        while (total < size)
+            total += extractor.extract(buf, 65536);
+        counter.mb += total / 1048576.0;
+        return total;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public int seek() throws IOException {
+        extractor.seek(index, offsets[next]);
+        next = (next + 1) % OFFSETS;
+        return extractor.extract(buf, 64);
+    }
+}
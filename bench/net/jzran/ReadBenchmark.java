@@ -0,0 +1,94 @@
+package net.jzran;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reading all of the decompressed data sequentially, in MB per second (the
+ * "mb" counter): through an index, and through GZIPInputStream for
+ * comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReadBenchmark {
+    @Param({Corpus.LOG, Corpus.RECORDS})
+    public String corpus;
+
+    @Param({"64"})
+    public int sizeMb;
+
+    @Param({"65536"})
+    public int bufferSize;
+
+    private Corpus data;
+    private RandomAccessGZip.Index index;
+    private byte[] buf;
+
+    /**
+     * Decompressed megabytes read, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Megabytes {
+        public double mb;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        data = new Corpus(corpus, sizeMb << 20, 1);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(data.zipped, 0, data.zipped.length);
+        index = RandomAccessGZip.index(sis, 1048576);
+        index.open(sis);
+        buf = new byte[bufferSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public long jzran(Megabytes counter) throws IOException {
+        index.seek(0);
+        return drain(index, counter);
+    }
+
+    @Benchmark
+    public long gzipInputStream(Megabytes counter) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data.zipped), bufferSize);
+        try {
+            return drain(in, counter);
+        } finally {
+            in.close();
+        }
+    }
+
+    private long drain(InputStream in, Megabytes counter) throws IOException {
+        long total = 0;
+        for (int n; (n = in.read(buf, 0, buf.length)) > 0; )
+            total += n;
+        counter.mb += total / 1048576.0;
+        return total;
+    }
+}
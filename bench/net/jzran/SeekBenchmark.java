@@ -0,0 +1,80 @@
+package net.jzran;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a seek and a small read after it, sampled so that JMH reports
+ * its distribution, by span and by distance past the preceding access
+ * point, as a fraction of the interval up to the next one. Offsets are
+ * taken from the access points of the index, which are at block
+ * boundaries at least a span apart, not at multiples of the span.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SeekBenchmark {
+    private static final int OFFSETS = 1024;
+
+    @Param({Corpus.LOG, Corpus.RECORDS})
+    public String corpus;
+
+    @Param({"64"})
+    public int sizeMb;
+
+    @Param({"65536", "1048576", "8388608"})
+    public long span;
+
+    @Param({"0.0", "0.25", "0.5", "0.9"})
+    public double distance;
+
+    private RandomAccessGZip.Index index;
+    private final long[] offsets = new long[OFFSETS];
+    private final byte[] buf = new byte[64];
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        Corpus data = new Corpus(corpus, sizeMb << 20, 1);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(data.zipped, 0, data.zipped.length);
+        index = RandomAccessGZip.index(sis, span);
+        index.open(sis);
+        // random intervals, so that the extractor restores every time
+        // rather than going on from where the last read stopped
+        Random r = new Random(1);
+        CheckpointTable table = index.table();
+        for (int i = 0; i < OFFSETS; ++i) {
+            int at = r.nextInt(table.size() - 1);
+            offsets[i] = table.out(at) + (long) (distance * (table.out(at + 1) - table.out(at)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public int seekAndRead() throws IOException {
+        index.seek(offsets[next]);
+        next = (next + 1) % OFFSETS;
+        return index.read(buf, 0, buf.length);
+    }
+}
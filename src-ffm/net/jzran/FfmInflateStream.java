@@ -0,0 +1,232 @@
+package net.jzran;
+
+import com.sun.jna.Pointer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+/**
+ * An inflate stream calling zlib through java.lang.foreign downcall
+ * handles. The z_stream lives in native memory of its own, and its fields
+ * are read and written there, so a call passes just its address instead of
+ * copying the whole structure both ways like JNA does.
+ *
+ * This is compiled only by a JDK that has java.lang.foreign (22 or later),
+ * and {@link InflateStream} picks it where it loads.
+ */
+final class FfmInflateStream extends InflateStream {
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final SymbolLookup ZLIB = zlib();
+
+    private static final StructLayout Z_STREAM = zStreamLayout();
+    private static final long NEXT_IN = offset("next_in");
+    private static final long AVAIL_IN = offset("avail_in");
+    private static final long NEXT_OUT = offset("next_out");
+    private static final long AVAIL_OUT = offset("avail_out");
+    private static final long DATA_TYPE = offset("data_type");
+
+    private static final MethodHandle INFLATE_INIT2 = function("inflateInit2_",
+            FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle INFLATE = function("inflate",
+            FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle INFLATE_RESET = function("inflateReset",
+            FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle INFLATE_PRIME = function("inflatePrime",
+            FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT));
+    private static final MethodHandle INFLATE_SET_DICTIONARY = function("inflateSetDictionary",
+            FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_INT));
+    private static final MethodHandle INFLATE_END = function("inflateEnd",
+            FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MemorySegment VERSION = version();
+
+    /* the address in a JNA pointer, which the rest of jzran passes around */
+    private static final VarHandle PEER = peer();
+
+    /* shared, as a pooled extractor is used by one thread after another */
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment stream = arena.allocate(Z_STREAM);
+
+    FfmInflateStream() throws IOException {
+        stream.fill((byte) 0);
+        int init;
+        try {
+            init = (int) INFLATE_INIT2.invokeExact(stream, -15, VERSION, (int) Z_STREAM.byteSize());
+        } catch (Throwable t) {
+            arena.close();
+            throw rethrow(t);
+        }
+        if (init != ZLib.Z_OK) {
+            arena.close();
+            throw new IOException("zlib error: " + init);
+        }
+    }
+
+    /*
+     * zlib's z_stream, with the size of uLong and padding of the platform.
+     */
+    private static StructLayout zStreamLayout() {
+        MemoryLayout uLong = LINKER.canonicalLayouts().get("long");
+        MemoryLayout[] fields = {
+                ADDRESS.withName("next_in"), JAVA_INT.withName("avail_in"), uLong.withName("total_in"),
+                ADDRESS.withName("next_out"), JAVA_INT.withName("avail_out"), uLong.withName("total_out"),
+                ADDRESS.withName("msg"), ADDRESS.withName("state"),
+                ADDRESS.withName("zalloc"), ADDRESS.withName("zfree"), ADDRESS.withName("opaque"),
+                JAVA_INT.withName("data_type"), uLong.withName("adler"), uLong.withName("reserved")};
+        List<MemoryLayout> padded = new ArrayList<MemoryLayout>();
+        long size = 0;
+        long alignment = 1;
+        for (MemoryLayout field : fields) {
+            long padding = -size & (field.byteAlignment() - 1);
+            if (padding != 0)
+                padded.add(MemoryLayout.paddingLayout(padding));
+            padded.add(field);
+            size += padding + field.byteSize();
+            alignment = Math.max(alignment, field.byteAlignment());
+        }
+        if ((size & (alignment - 1)) != 0)
+            padded.add(MemoryLayout.paddingLayout(-size & (alignment - 1)));
+        return MemoryLayout.structLayout(padded.toArray(new MemoryLayout[0]));
+    }
+
+    private static long offset(String field) {
+        return Z_STREAM.byteOffset(groupElement(field));
+    }
+
+    /*
+     * The zlib given by jzran.zlib.file if it's set, else the system one,
+     * else the one bundled in lib.
+     */
+    private static SymbolLookup zlib() {
+        if (System.getProperty("jzran.zlib.file") == null) {
+            String[] names = {System.mapLibraryName("z"), "libz.so.1", "zlib1.dll"};
+            for (String name : names) {
+                try {
+                    return SymbolLookup.libraryLookup(name, Arena.global());
+                } catch (IllegalArgumentException e) {
+                    // try the next name
+                }
+            }
+        }
+        File file = ZLib.Helper.getZlibFile().getAbsoluteFile();
+        return SymbolLookup.libraryLookup(file.toPath(), Arena.global());
+    }
+
+    private static MethodHandle function(String name, FunctionDescriptor descriptor) {
+        MemorySegment address = ZLIB.find(name).orElse(null);
+        if (address == null)
+            throw new UnsatisfiedLinkError("No " + name + " in zlib");
+        return LINKER.downcallHandle(address, descriptor);
+    }
+
+    private static MemorySegment version() {
+        try {
+            return (MemorySegment) function("zlibVersion", FunctionDescriptor.of(ADDRESS)).invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static VarHandle peer() {
+        try {
+            return MethodHandles.privateLookupIn(Pointer.class, MethodHandles.lookup())
+                    .findVarHandle(Pointer.class, "peer", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MemorySegment segment(Pointer p) {
+        return (p == null) ? MemorySegment.NULL : MemorySegment.ofAddress((long) PEER.get(p));
+    }
+
+    /* downcalls throw nothing checked */
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof Error)
+            throw (Error) t;
+        if (t instanceof RuntimeException)
+            return (RuntimeException) t;
+        return new RuntimeException(t);
+    }
+
+    int inflate(int flush) {
+        try {
+            return (int) INFLATE.invokeExact(stream, flush);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    int inflateReset() {
+        try {
+            return (int) INFLATE_RESET.invokeExact(stream);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    int inflatePrime(int bits, int value) {
+        try {
+            return (int) INFLATE_PRIME.invokeExact(stream, bits, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    int inflateSetDictionary(Pointer dictionary, int length) {
+        try {
+            return (int) INFLATE_SET_DICTIONARY.invokeExact(stream, segment(dictionary), length);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    void inflateEnd() {
+        if (!arena.scope().isAlive())
+            return;
+        try {
+            int ignored = (int) INFLATE_END.invokeExact(stream);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        } finally {
+            arena.close();
+        }
+    }
+
+    void setInput(Pointer next, int avail) {
+        stream.set(ADDRESS, NEXT_IN, segment(next));
+        stream.set(JAVA_INT, AVAIL_IN, avail);
+    }
+
+    int availIn() {
+        return stream.get(JAVA_INT, AVAIL_IN);
+    }
+
+    void setOutput(Pointer next, int avail) {
+        stream.set(ADDRESS, NEXT_OUT, segment(next));
+        stream.set(JAVA_INT, AVAIL_OUT, avail);
+    }
+
+    int availOut() {
+        return stream.get(JAVA_INT, AVAIL_OUT);
+    }
+
+    int dataType() {
+        return stream.get(JAVA_INT, DATA_TYPE);
+    }
+}
@@ -0,0 +1,72 @@
+package net.jzran;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Adds access points where seeks keep inflating data only to skip it,
+ * capturing them from the extractors that inflate it anyway, within a
+ * budget of memory.
+ *
+ * For each interval between access points, this counts the bytes that
+ * seeks into it have skipped. Once that is HOT times the length of the
+ * interval, the next seek that skips through it captures access points
+ * every quarter of the interval, at deflate block boundaries.
+ */
+class AdaptiveCheckpoints {
+    private static final int HOT = 2;
+    private static final long MIN_SPACING = 2 * CheckpointTable.WINSIZE;
+
+    private final RandomAccessGZip.Index index;
+    private final long budget;
+    private long used;
+    /* bytes skipped in each interval, by its start */
+    private final Map<Long, Long> skipped = new HashMap<Long, Long>();
+
+    AdaptiveCheckpoints(RandomAccessGZip.Index index, long budget) {
+        this.index = index;
+        this.budget = budget;
+    }
+
+    /**
+     * Note that an extractor at from is about to skip to offset, through
+     * the interval after access point here of table.
+     *
+     * @return the spacing at which to capture access points while skipping,
+     *   or 0 not to capture any.
+     */
+    synchronized long skipping(CheckpointTable table, int here, long from, long offset) {
+        long start = table.out(here);
+        long end = (here + 1 < table.size()) ? table.out(here + 1) : index.frontier();
+        Long before = skipped.get(start);
+        long total = ((before == null) ? 0 : before) + (offset - from);
+        long spacing = Math.max(MIN_SPACING, (end - start) / 4);
+        if (used >= budget || total < HOT * (end - start) || end - start < 2 * spacing) {
+            skipped.put(start, total);
+            return 0;
+        }
+        skipped.remove(start);
+        return spacing;
+    }
+
+    /**
+     * Add an access point with the given window, oldest byte first, unless
+     * there's one at the same offset already or the budget is spent.
+     */
+    synchronized void capture(long out, long in, int bits, byte[] window) {
+        if (used >= budget)
+            return;
+        int[] len = new int[1];
+        byte[] blob = WindowStore.deflate(window, len);
+        if (used + len[0] + CheckpointTable.POINT_OVERHEAD > budget) {
+            used = budget;
+            return;
+        }
+        if (index.addCheckpoint(out, in, bits, blob, len[0]))
+            used += len[0] + CheckpointTable.POINT_OVERHEAD;
+    }
+
+    synchronized long used() {
+        return used;
+    }
+}
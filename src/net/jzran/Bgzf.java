@@ -0,0 +1,163 @@
+package net.jzran;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * BGZF, the blocked gzip of bgzip, BAM and tabix: a series of gzip members
+ * of at most 64kb, each with its own compressed size in a "BC" subfield
+ * of the extra field and its decompressed size in its trailer. Indexing
+ * such data needs no inflating: walking the block headers gives an access
+ * point at each block, none of which needs a window.
+ *
+ * Also reads and writes the .gzi index files of bgzip: a count, then for
+ * each block but the first its compressed and decompressed offset, all
+ * as little-endian 64-bit numbers.
+ */
+class Bgzf {
+    static final int MAX_BLOCK_SIZE = 65536;
+
+    /**
+     * Size of the BGZF block whose header is at the start of buf.
+     *
+     * @return -1 if buf doesn't start with a BGZF block header, -2 if its
+     *   extra field is longer than len.
+     */
+    static int blockSize(byte[] buf, int len) {
+        if (len < 12 || buf[0] != (byte) 0x1f || buf[1] != (byte) 0x8b || buf[2] != 8 || (buf[3] & 4) == 0)
+            return -1;
+        int end = 12 + u16(buf, 10);
+        if (end > len)
+            return -2;
+        for (int p = 12; p + 4 <= end; p += 4 + u16(buf, p + 2)) {
+            if (buf[p] == 'B' && buf[p + 1] == 'C' && u16(buf, p + 2) == 2 && p + 6 <= end)
+                return u16(buf, p + 4) + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Index BGZF data by walking its blocks, with an access point at each.
+     */
+    static CheckpointTable index(InputStream in, long[] totals, ProgressListener<Long> listener)
+            throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        byte[] block = new byte[MAX_BLOCK_SIZE];
+        CheckpointTable index = new CheckpointTable();
+        long offset = 0;
+        long out = 0;
+        while (true) {
+            if (!listener.reportProgress(offset))
+                return null;
+            int n = 0;
+            while (n < 12) {
+                int nr = in.read(block, n, 12 - n);
+                if (nr == -1)
+                    break;
+                n += nr;
+            }
+            if (n == 0)
+                break;
+            if (n < 12)
+                throw new IOException("Truncated BGZF block at " + offset);
+            int headerSize = 12 + u16(block, 10);
+            if (headerSize > MAX_BLOCK_SIZE)
+                throw new IOException("Not a BGZF block at " + offset);
+            din.readFully(block, 12, headerSize - 12);
+            int size = blockSize(block, headerSize);
+            if (size < headerSize + 8)
+                throw new IOException("Not a BGZF block at " + offset);
+            din.readFully(block, headerSize, size - headerSize);
+            if (offset == 0)
+                totals[ZRan.MTIME] = u32(block, 4);
+            index.add(out, offset, CheckpointTable.MEMBER_START);
+            index.windows().add(ZRan.NO_WINDOW, 0, 0);
+            out += u32(block, size - 4);
+            offset += size;
+        }
+        totals[ZRan.DECOMPRESSED_SIZE] = out;
+        totals[ZRan.COMPRESSED_SIZE] = offset;
+        return index;
+    }
+
+    /**
+     * Write the access points at member starts as a .gzi index. For an
+     * index of BGZF data, these are all the blocks.
+     */
+    static void writeGzi(CheckpointTable table, OutputStream os) throws IOException {
+        int count = 0;
+        for (int i = 0; i < table.size(); ++i) {
+            if (table.memberStart(i) && table.in(i) != 0)
+                count++;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(8 + 16 * count).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putLong(count);
+        for (int i = 0; i < table.size(); ++i) {
+            if (table.memberStart(i) && table.in(i) != 0) {
+                buf.putLong(table.in(i));
+                buf.putLong(table.out(i));
+            }
+        }
+        os.write(buf.array());
+        os.flush();
+    }
+
+    /**
+     * Read a .gzi index. The blocks after the last one it lists are walked
+     * in the data, which also gives the sizes of the data.
+     */
+    static CheckpointTable readGzi(InputStream gzi, SeekableInputStream data, long[] totals) throws IOException {
+        DataInputStream din = new DataInputStream(gzi);
+        byte[] bytes = new byte[8];
+        din.readFully(bytes);
+        long count = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getLong();
+        if (count < 0 || count > Integer.MAX_VALUE / 16)
+            throw new IOException("Bad number of .gzi entries: " + count);
+        bytes = new byte[16 * (int) count];
+        din.readFully(bytes);
+        ByteBuffer entries = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        CheckpointTable index = new CheckpointTable();
+        index.add(0, 0, CheckpointTable.MEMBER_START);
+        index.windows().add(ZRan.NO_WINDOW, 0, 0);
+        long in = 0;
+        long out = 0;
+        for (int i = 0; i < count; ++i) {
+            long nextIn = entries.getLong();
+            long nextOut = entries.getLong();
+            if (nextIn <= in || nextOut < out)
+                throw new IOException("Corrupt .gzi index: offsets out of order at entry " + i);
+            in = nextIn;
+            out = nextOut;
+            index.add(out, in, CheckpointTable.MEMBER_START);
+            index.windows().add(ZRan.NO_WINDOW, 0, 0);
+        }
+
+        long[] rest = new long[3];
+        CheckpointTable tail = index(new RangeInputStream(data, in, Long.MAX_VALUE), rest, new NullProgressListener());
+        for (int i = 1; i < tail.size(); ++i) {
+            index.add(tail.out(i) + out, tail.in(i) + in, CheckpointTable.MEMBER_START);
+            index.windows().add(ZRan.NO_WINDOW, 0, 0);
+        }
+        byte[] header = new byte[8];
+        if (data.read(0, header, 0, 8) != 8)
+            throw new IOException("Truncated BGZF data");
+        totals[ZRan.MTIME] = u32(header, 4);
+        totals[ZRan.DECOMPRESSED_SIZE] = out + rest[ZRan.DECOMPRESSED_SIZE];
+        totals[ZRan.COMPRESSED_SIZE] = in + rest[ZRan.COMPRESSED_SIZE];
+        return index;
+    }
+
+    private static int u16(byte[] buf, int pos) {
+        return (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8;
+    }
+
+    private static long u32(byte[] buf, int pos) {
+        return (buf[pos] & 0xffL) | (buf[pos + 1] & 0xffL) << 8 |
+                (buf[pos + 2] & 0xffL) << 16 | (buf[pos + 3] & 0xffL) << 24;
+    }
+}
@@ -1,6 +1,7 @@
 package net.jzran;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class ByteArraySeekableInputStream extends SeekableInputStream {
     private final byte[] buf;
@@ -86,4 +87,32 @@ public class ByteArraySeekableInputStream extends SeekableInputStream {
     public long length() throws IOException {
         return len;
     }
+
+    @Override
+    public int read(long position, byte[] b, int off, int readLen) throws IOException {
+        ensureOpen();
+        if(position < 0 || position > len) {
+            throw new IllegalArgumentException(
+                    "Offset beyond end of buffer: " + position + " > " + len);
+        }
+        int rem = (int)Math.min(readLen, len - position);
+        if(rem == 0)
+            return -1;
+        System.arraycopy(buf, (int)(offset + position), b, off, rem);
+        return rem;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if(position < 0 || position > len) {
+            throw new IllegalArgumentException(
+                    "Offset beyond end of buffer: " + position + " > " + len);
+        }
+        int rem = (int)Math.min(dst.remaining(), len - position);
+        if(rem == 0)
+            return -1;
+        dst.put(buf, (int)(offset + position), rem);
+        return rem;
+    }
 }
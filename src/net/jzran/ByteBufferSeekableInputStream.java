@@ -76,4 +76,40 @@ public class ByteBufferSeekableInputStream extends SeekableInputStream {
     public long length() throws IOException {
         return buf.limit();
     }
+
+    @Override
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if(position > buf.limit()) {
+            throw new IllegalArgumentException("Offset beyond end of buffer: " + position + " > " + buf.limit());
+        }
+        ByteBuffer dup = buf.duplicate();
+        dup.position((int)position);
+        int rem = Math.min(len, dup.remaining());
+        dup.get(b, off, rem);
+        return (rem==0) ? -1 : rem;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if(position > buf.limit()) {
+            throw new IllegalArgumentException("Offset beyond end of buffer: " + position + " > " + buf.limit());
+        }
+        ByteBuffer dup = buf.duplicate();
+        dup.position((int)position);
+        int rem = Math.min(dst.remaining(), dup.remaining());
+        dup.limit(dup.position() + rem);
+        dst.put(dup);
+        return (rem==0) ? -1 : rem;
+    }
+
+    @Override
+    ByteBuffer mapped(long position) {
+        if(!buf.isDirect() || isClosed || position >= buf.limit())
+            return null;
+        ByteBuffer dup = buf.duplicate();
+        dup.position((int)position);
+        return dup.slice();
+    }
 }
@@ -0,0 +1,322 @@
+package net.jzran;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+import java.io.IOException;
+
+/**
+ * The access points of an index, stored column-wise: decompressed offsets,
+ * compressed offsets and bit offsets live in primitive arrays, and the
+ * 32kb windows live, usually compressed, in a {@link WindowStore}, with
+ * the most recently used ones also kept decoded in a {@link WindowCache}.
+ *
+ * Access points are kept in increasing order of decompressed offset,
+ * which lets {@link #find(long)} use binary search.
+ *
+ * Once built, a table doesn't change: {@link #with} returns a copy with
+ * one more access point, so that readers keep a consistent view while
+ * access points are added.
+ */
+class CheckpointTable {
+    static final int WINSIZE = 32768;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    static final int DEFAULT_WINDOW_CACHE_SIZE = 4;
+
+    /**
+     * Flag stored with the bit offset of an access point at the start of
+     * a gzip member. Its compressed offset is that of the member's header,
+     * and it has no window: the member's data can't refer back to anything
+     * before it.
+     */
+    static final int MEMBER_START = 0x80;
+
+    /**
+     * Heap bytes an access point takes besides its window: its offsets and
+     * bits, and the location and length of its window in the store.
+     */
+    static final int POINT_OVERHEAD = 33;
+
+    private long[] out;
+    private long[] in;
+    private byte[] bits;
+    /* slot of the window of each access point in the store, if it isn't
+       the access point's own index */
+    private int[] slots;
+    private int size;
+    private final WindowStore windows;
+    private volatile WindowCache cache = new WindowCache(DEFAULT_WINDOW_CACHE_SIZE);
+
+    /**
+     * An empty table to be filled by {@link #add}.
+     */
+    CheckpointTable() {
+        this.out = new long[INITIAL_CAPACITY];
+        this.in = new long[INITIAL_CAPACITY];
+        this.bits = new byte[INITIAL_CAPACITY];
+        this.windows = new CompressedWindowStore(INITIAL_CAPACITY);
+    }
+
+    CheckpointTable(long[] out, long[] in, byte[] bits, int size, WindowStore windows) {
+        this.out = out;
+        this.in = in;
+        this.bits = bits;
+        this.size = size;
+        this.windows = windows;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long out(int i) {
+        return out[i];
+    }
+
+    long in(int i) {
+        return in[i];
+    }
+
+    int bits(int i) {
+        return bits[i] & 7;
+    }
+
+    boolean memberStart(int i) {
+        return (bits[i] & MEMBER_START) != 0;
+    }
+
+    WindowStore windows() {
+        return windows;
+    }
+
+    private int slot(int i) {
+        return (slots == null) ? i : slots[i];
+    }
+
+    /**
+     * The window of access point i: WINSIZE bytes of native memory.
+     *
+     * @see WindowStore#get(int, com.sun.jna.Memory)
+     */
+    Pointer window(int i, Memory scratch) throws IOException {
+        WindowCache c = cache;
+        return (c == null) ? windows.get(slot(i), scratch) : c.get(windows, slot(i), scratch);
+    }
+
+    /**
+     * The window of access point i as stored: a zlib stream, or empty.
+     */
+    byte[] compressedWindow(int i) throws IOException {
+        return windows.compressed(slot(i));
+    }
+
+    /**
+     * Keep up to this many recently used windows decoded; 0 disables caching.
+     */
+    void setWindowCacheSize(int size) {
+        cache = (size > 0) ? new WindowCache(size) : null;
+    }
+
+    /**
+     * Index of the access point to start from in order to reach the
+     * given offset of the decompressed data, i.e. the last one whose
+     * decompressed offset doesn't exceed it.
+     */
+    int find(long offset) {
+        int lo = 0, hi = size - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (out[mid] <= offset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Append an access point. Its window is added to {@link #windows()}
+     * separately, possibly later, but in the same order.
+     *
+     * @param bits the bit offset, possibly with {@link #MEMBER_START}.
+     */
+    void add(long out, long in, int bits) {
+        if (size == this.out.length)
+            grow();
+        this.out[size] = out;
+        this.in[size] = in;
+        this.bits[size] = (byte) bits;
+        size++;
+    }
+
+    /**
+     * Append all access points of a table built over a part of the same
+     * data, with their windows, shifting their offsets by the offsets of
+     * the start of that part.
+     */
+    void append(CheckpointTable part, long outBase, long inBase) throws IOException {
+        for (int i = 0; i < part.size; ++i) {
+            add(part.out[i] + outBase, part.in[i] + inBase, part.bits[i]);
+            byte[] blob = part.compressedWindow(i);
+            windows.add(blob, 0, blob.length);
+        }
+    }
+
+    /**
+     * Bytes of memory access point i takes: its window as stored, and
+     * {@link #POINT_OVERHEAD}.
+     */
+    long bytes(int i) {
+        return POINT_OVERHEAD + windows.length(slot(i));
+    }
+
+    /**
+     * Bytes of memory all access points take, as counted by {@link #bytes(int)}.
+     */
+    long bytes() {
+        long res = 0;
+        for (int i = 0; i < size; ++i)
+            res += bytes(i);
+        return res;
+    }
+
+    /**
+     * A table with those of the access points that fit in maxBytes, as
+     * counted by {@link #bytes()}, chosen to keep the longest run of output
+     * from one to the next, or to the end of the data at length, short.
+     * Windows are copied as stored, without inflating them.
+     *
+     * @throws IllegalArgumentException if not even the first access point fits.
+     */
+    CheckpointTable thin(long length, long maxBytes) throws IOException {
+        if (bytes() <= maxBytes)
+            return this;
+        if (bytes(0) > maxBytes)
+            throw new IllegalArgumentException("An index of this data takes at least " + bytes(0) + " bytes");
+        int[] keep = new int[size];
+        /* the longest run that doesn't fit, and one that does */
+        long lo = 0;
+        long hi = length;
+        while (lo + 1 < hi) {
+            long mid = lo + (hi - lo) / 2;
+            if (select(mid, length, maxBytes, keep) < 0)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        int n = select(hi, length, maxBytes, keep);
+        CheckpointTable res = new CheckpointTable();
+        for (int k = 0; k < n; ++k) {
+            int i = keep[k];
+            res.add(out[i], in[i], bits[i]);
+            res.windows.add(windows.compressed(slot(i)), 0, windows.length(slot(i)));
+        }
+        return res;
+    }
+
+    /*
+     * Choose access points greedily, each as far from the previous one as
+     * it can be without a run longer than gap, into keep.
+     * Returns how many, or -1 if they take more than maxBytes.
+     */
+    private int select(long gap, long length, long maxBytes, int[] keep) {
+        int n = 0;
+        int last = 0;
+        long total = bytes(0);
+        keep[n++] = 0;
+        while (length - out[last] > gap && last + 1 < size) {
+            int j = last + 1;
+            while (j + 1 < size && out[j + 1] - out[last] <= gap)
+                ++j;
+            total += bytes(j);
+            if (total > maxBytes)
+                return -1;
+            keep[n++] = j;
+            last = j;
+        }
+        return n;
+    }
+
+    /**
+     * A copy of this table with one more access point, whose window is
+     * given as a zlib stream. The window is appended to the store, which
+     * the copy shares with this table, as it does the window cache.
+     */
+    CheckpointTable with(long out, long in, int bits, byte[] window, int windowLength) {
+        int slot;
+        synchronized (windows) {
+            windows.add(window, 0, windowLength);
+            slot = windows.size() - 1;
+        }
+        int at = find(out) + 1;
+        int n = size + 1;
+        long[] newOut = new long[n];
+        long[] newIn = new long[n];
+        byte[] newBits = new byte[n];
+        int[] newSlots = new int[n];
+        System.arraycopy(this.out, 0, newOut, 0, at);
+        System.arraycopy(this.in, 0, newIn, 0, at);
+        System.arraycopy(this.bits, 0, newBits, 0, at);
+        System.arraycopy(this.out, at, newOut, at + 1, size - at);
+        System.arraycopy(this.in, at, newIn, at + 1, size - at);
+        System.arraycopy(this.bits, at, newBits, at + 1, size - at);
+        for (int i = 0; i < size; ++i)
+            newSlots[i < at ? i : i + 1] = slot(i);
+        newOut[at] = out;
+        newIn[at] = in;
+        newBits[at] = (byte) bits;
+        newSlots[at] = slot;
+        CheckpointTable res = new CheckpointTable(newOut, newIn, newBits, n, windows);
+        res.slots = newSlots;
+        res.cache = cache;
+        return res;
+    }
+
+    /**
+     * A copy of the first n access points of this table followed by all
+     * those of a table of the data after them, shifting their offsets like
+     * {@link #append(CheckpointTable, long, long)} does. Their windows are
+     * appended to the store, which the copy shares with this table, as it
+     * does the window cache.
+     */
+    CheckpointTable with(int n, CheckpointTable part, long outBase, long inBase) throws IOException {
+        int total = n + part.size;
+        long[] newOut = new long[total];
+        long[] newIn = new long[total];
+        byte[] newBits = new byte[total];
+        int[] newSlots = new int[total];
+        System.arraycopy(this.out, 0, newOut, 0, n);
+        System.arraycopy(this.in, 0, newIn, 0, n);
+        System.arraycopy(this.bits, 0, newBits, 0, n);
+        for (int i = 0; i < n; ++i)
+            newSlots[i] = slot(i);
+        for (int i = 0; i < part.size; ++i) {
+            newOut[n + i] = part.out[i] + outBase;
+            newIn[n + i] = part.in[i] + inBase;
+            newBits[n + i] = part.bits[i];
+            byte[] blob = part.compressedWindow(i);
+            synchronized (windows) {
+                windows.add(blob, 0, blob.length);
+                newSlots[n + i] = windows.size() - 1;
+            }
+        }
+        CheckpointTable res = new CheckpointTable(newOut, newIn, newBits, total, windows);
+        res.slots = newSlots;
+        res.cache = cache;
+        return res;
+    }
+
+    private void grow() {
+        long[] newOut = new long[2 * size];
+        long[] newIn = new long[2 * size];
+        byte[] newBits = new byte[2 * size];
+        System.arraycopy(out, 0, newOut, 0, size);
+        System.arraycopy(in, 0, newIn, 0, size);
+        System.arraycopy(bits, 0, newBits, 0, size);
+        out = newOut;
+        in = newIn;
+        bits = newBits;
+    }
+}
@@ -0,0 +1,156 @@
+package net.jzran;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of decompressed data, bounded in bytes and evicting the least
+ * recently used chunks. It can be shared by any number of indexes, also
+ * by different indexes over the same gzip data: see
+ * {@link RandomAccessGZip.Index#setChunkCache(ChunkCache, Object)}.
+ *
+ * Decompressed data is cached in aligned chunks of a fixed size, either
+ * on the heap or in native memory. Safe for use by several threads.
+ */
+public class ChunkCache {
+    public static final int DEFAULT_CHUNK_SIZE = 65536;
+
+    private final int chunkSize;
+    private final boolean offHeap;
+    private final LinkedHashMap<Key, Chunk> chunks;
+    /* buffer of the last evicted chunk, reused for the next one put */
+    private Chunk spare;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * A cache of chunks of {@link #DEFAULT_CHUNK_SIZE} bytes, on the heap.
+     *
+     * @param capacity size limit in bytes.
+     */
+    public ChunkCache(long capacity) {
+        this(capacity, DEFAULT_CHUNK_SIZE, false);
+    }
+
+    /**
+     * @param capacity size limit in bytes.
+     * @param chunkSize the unit of caching, at most 1mb.
+     * @param offHeap whether to keep chunks in native memory rather than
+     *   on the heap.
+     */
+    public ChunkCache(long capacity, int chunkSize, boolean offHeap) {
+        if (chunkSize <= 0 || chunkSize > RandomAccessGZip.Index.BUF_SIZE)
+            throw new IllegalArgumentException("Chunk size must be in 1.." + RandomAccessGZip.Index.BUF_SIZE + ": " + chunkSize);
+        if (capacity < chunkSize)
+            throw new IllegalArgumentException("Capacity " + capacity + " is less than one chunk of " + chunkSize);
+        this.chunkSize = chunkSize;
+        this.offHeap = offHeap;
+        final long maxChunks = capacity / chunkSize;
+        this.chunks = new LinkedHashMap<Key, Chunk>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, Chunk> eldest) {
+                if (size() <= maxChunks)
+                    return false;
+                spare = eldest.getValue();
+                return true;
+            }
+        };
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        chunks.clear();
+        spare = null;
+    }
+
+    /**
+     * Copy cached data of the given chunk, starting at the given offset
+     * within the chunk, into dst.
+     *
+     * @return the number of bytes copied, or -1 if the chunk isn't cached
+     *   as far as offset: a chunk cached short, where a lazy index or one
+     *   that was later extended ended, is a miss past its end.
+     */
+    synchronized int read(Object source, long chunk, int offset, ByteBuffer dst) {
+        Chunk c = chunks.get(new Key(source, chunk));
+        if (c == null || offset >= c.length) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        int n = Math.min(dst.remaining(), c.length - offset);
+        if (c.direct != null)
+            dst.put(c.direct.getByteBuffer(offset, n));
+        else
+            dst.put(c.heap, offset, n);
+        return n;
+    }
+
+    /**
+     * Cache len bytes of decompressed data at data as the given chunk.
+     */
+    synchronized void put(Object source, long chunk, Pointer data, int len) {
+        Chunk c = spare;
+        spare = null;
+        if (c == null)
+            c = offHeap ? new Chunk(new Memory(chunkSize)) : new Chunk(new byte[chunkSize]);
+        if (c.direct != null)
+            c.direct.getByteBuffer(0, len).put(data.getByteBuffer(0, len));
+        else
+            data.read(0, c.heap, 0, len);
+        c.length = len;
+        chunks.put(new Key(source, chunk), c);
+    }
+
+    private static class Chunk {
+        private final byte[] heap;
+        private final Memory direct;
+        private int length;
+
+        Chunk(byte[] heap) {
+            this.heap = heap;
+            this.direct = null;
+        }
+
+        Chunk(Memory direct) {
+            this.heap = null;
+            this.direct = direct;
+        }
+    }
+
+    private static class Key {
+        private final Object source;
+        private final long chunk;
+
+        Key(Object source, long chunk) {
+            this.source = source;
+            this.chunk = chunk;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return chunk == k.chunk && source.equals(k.source);
+        }
+
+        public int hashCode() {
+            return 31 * source.hashCode() + (int) (chunk ^ (chunk >>> 32));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package net.jzran;
+
+import com.sun.jna.Memory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splits the decompressed data at access points: each spliterator covers
+ * one or more intervals between access points and inflates them with its
+ * own extractor into its own buffer, so that a parallel stream runs one
+ * extractor per worker. Chunks are cut at access points too.
+ */
+class ChunkSpliterator implements Spliterator<DecompressedChunk> {
+    private final SeekableInputStream inStream;
+    private final CheckpointTable index;
+    private final long length;
+    private final int chunkSize;
+    private final Extractors extractors;
+
+    /* access points [from, to) */
+    private int from;
+    private final int to;
+    /* the first access point after pos */
+    private int next;
+
+    private ZRan.Extractor extractor;
+    private ByteBuffer view;
+    private Memory buffer;
+    private DecompressedChunk chunk;
+    private long pos;
+    private final long end;
+
+    ChunkSpliterator(SeekableInputStream inStream, CheckpointTable index, long length,
+                     int chunkSize, Extractors extractors) {
+        this(inStream, index, length, chunkSize, extractors, 0, index.size());
+    }
+
+    private ChunkSpliterator(SeekableInputStream inStream, CheckpointTable index, long length,
+                             int chunkSize, Extractors extractors, int from, int to) {
+        this.inStream = inStream;
+        this.index = index;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.extractors = extractors;
+        this.from = from;
+        this.to = to;
+        this.pos = start(from);
+        this.end = start(to);
+        this.next = from + 1;
+    }
+
+    private long start(int point) {
+        return (point < index.size()) ? Math.min(index.out(point), length) : length;
+    }
+
+    public boolean tryAdvance(Consumer<? super DecompressedChunk> action) {
+        if (pos >= end) {
+            if (extractor != null) {
+                extractors.close(extractor);
+                extractor = null;
+            }
+            return false;
+        }
+        try {
+            if (extractor == null) {
+                extractor = extractors.add(new ZRan.Extractor(inStream));
+                extractor.seek(index, pos);
+                buffer = extractor.buffer(chunkSize);
+                view = buffer.getByteBuffer(0, chunkSize).asReadOnlyBuffer();
+                chunk = new DecompressedChunk();
+            }
+            while (next < to && start(next) <= pos)
+                next++;
+            int len = (int) Math.min(chunkSize, start(next) - pos);
+            for (int filled = 0; filled < len; ) {
+                filled += extractor.extract(buffer.share(filled), len - filled);
+            }
+            view.clear();
+            view.limit(len);
+            chunk.set(pos, view);
+            pos += len;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        action.accept(chunk);
+        return true;
+    }
+
+    /**
+     * Gives away the first half of the access points not yet started.
+     */
+    public Spliterator<DecompressedChunk> trySplit() {
+        if (extractor != null || to - from < 2)
+            return null;
+        int mid = (from + to) >>> 1;
+        ChunkSpliterator prefix = new ChunkSpliterator(inStream, index, length, chunkSize, extractors, from, mid);
+        from = mid;
+        pos = start(mid);
+        next = mid + 1;
+        return prefix;
+    }
+
+    public long estimateSize() {
+        return (end - pos + chunkSize - 1) / chunkSize;
+    }
+
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    /**
+     * Extractors of all the spliterators split from one, so that closing
+     * the stream frees those left open when it was cut short.
+     */
+    static class Extractors implements Runnable {
+        private final List<ZRan.Extractor> open = new ArrayList<ZRan.Extractor>();
+
+        synchronized ZRan.Extractor add(ZRan.Extractor extractor) {
+            open.add(extractor);
+            return extractor;
+        }
+
+        synchronized void close(ZRan.Extractor extractor) {
+            if (open.remove(extractor))
+                extractor.close();
+        }
+
+        public synchronized void run() {
+            for (ZRan.Extractor extractor : open)
+                extractor.close();
+            open.clear();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net.jzran;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * Windows kept as zlib streams, packed into large heap pages so that
+ * there are a few big arrays instead of one small array per window.
+ * A window is inflated only when an extractor restores from it.
+ */
+class CompressedWindowStore extends WindowStore {
+    private static final int MIN_PAGE_SIZE = 1 << 16;
+    private static final int MAX_PAGE_SIZE = 1 << 24;
+
+    /* volatile, so that windows may be added while others are read:
+       a reader that sees a grown array sees what was copied into it */
+    private volatile byte[][] pages = new byte[1][];
+    private int pageCount;
+    private int pageFill;
+
+    /* page << 32 | offset in page */
+    private volatile long[] location;
+    private volatile int[] length;
+    private int size;
+
+    CompressedWindowStore(int capacity) {
+        location = new long[Math.max(capacity, 1)];
+        length = new int[Math.max(capacity, 1)];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int length(int i) {
+        return length[i];
+    }
+
+    @Override
+    boolean writable() {
+        return true;
+    }
+
+    void read(int i, byte[] window) throws IOException {
+        inflate(i, pages[(int) (location[i] >>> 32)], (int) location[i], length[i], window);
+    }
+
+    byte[] compressed(int i) {
+        byte[] res = new byte[length[i]];
+        System.arraycopy(pages[(int) (location[i] >>> 32)], (int) location[i], res, 0, length[i]);
+        return res;
+    }
+
+    void add(byte[] window) {
+        int[] len = new int[1];
+        byte[] deflated = deflate(window, len);
+        add(deflated, 0, len[0]);
+    }
+
+    /**
+     * Append a window given as a zlib stream, or an empty one for an
+     * access point that has no window.
+     */
+    void add(byte[] buf, int off, int len) {
+        System.arraycopy(buf, off, reserve(len), pageFill, len);
+        commit(len);
+    }
+
+    /**
+     * Append a window given as a zlib stream of len bytes read from in.
+     */
+    void add(DataInput in, int len) throws IOException {
+        in.readFully(reserve(len), pageFill, len);
+        commit(len);
+    }
+
+    private byte[] reserve(int len) {
+        if (size == location.length) {
+            long[] newLocation = new long[2 * size];
+            int[] newLength = new int[2 * size];
+            System.arraycopy(location, 0, newLocation, 0, size);
+            System.arraycopy(length, 0, newLength, 0, size);
+            location = newLocation;
+            length = newLength;
+        }
+        if (pageCount == 0 || pages[pageCount - 1].length - pageFill < len) {
+            if (pageCount == pages.length) {
+                byte[][] newPages = new byte[2 * pageCount][];
+                System.arraycopy(pages, 0, newPages, 0, pageCount);
+                pages = newPages;
+            }
+            int pageSize = (pageCount == 0) ? MIN_PAGE_SIZE : Math.min(MAX_PAGE_SIZE, 2 * pages[pageCount - 1].length);
+            pages[pageCount++] = new byte[Math.max(pageSize, len)];
+            pageFill = 0;
+        }
+        return pages[pageCount - 1];
+    }
+
+    private void commit(int len) {
+        location[size] = ((long) (pageCount - 1) << 32) | pageFill;
+        length[size] = len;
+        pageFill += len;
+        size++;
+    }
+}
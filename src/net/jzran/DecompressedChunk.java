@@ -0,0 +1,39 @@
+package net.jzran;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A piece of decompressed data handed out by
+ * {@link RandomAccessGZip.Index#chunks(int)}, together with its offset in
+ * the decompressed data.
+ *
+ * Chunks and their buffers are reused: they're only valid until the
+ * action they were passed to returns, so copy out what you want to keep.
+ */
+public class DecompressedChunk {
+    private long offset;
+    private ByteBuffer data;
+
+    DecompressedChunk() {
+    }
+
+    void set(long offset, ByteBuffer data) {
+        this.offset = offset;
+        this.data = data;
+    }
+
+    /**
+     * Offset of the first byte of this chunk in the decompressed data.
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * The data, from its position to its limit: a read-only view of a
+     * native buffer.
+     */
+    public ByteBuffer data() {
+        return data;
+    }
+}
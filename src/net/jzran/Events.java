@@ -0,0 +1,46 @@
+package net.jzran;
+
+/**
+ * Flight recorder events of seeks and index builds, if the JVM has the
+ * flight recorder: they're only created while a recording has them
+ * enabled. This class doesn't refer to the flight recorder API itself, so
+ * that it can be loaded without it; {@link Jfr} does.
+ */
+class Events {
+    private static final boolean AVAILABLE = available();
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event", false, Events.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * A started seek event, or null if none is being recorded.
+     */
+    static Object seeking() {
+        return AVAILABLE ? Jfr.seeking() : null;
+    }
+
+    static void seeked(Object event, long offset, long from, boolean restored, long discarded) {
+        if (event != null)
+            Jfr.seeked(event, offset, from, restored, discarded);
+    }
+
+    /**
+     * A started index build event, or null if none is being recorded.
+     */
+    static Object indexBuilding() {
+        return AVAILABLE ? Jfr.indexBuilding() : null;
+    }
+
+    static void indexBuilt(Object event, long span, long compressed, long decompressed, int points) {
+        if (event != null)
+            Jfr.indexBuilt(event, span, compressed, decompressed, points);
+    }
+}
@@ -0,0 +1,103 @@
+package net.jzran;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded pool of extractors over the same compressed stream, for
+ * positional reads from several threads at once.
+ */
+class ExtractorPool {
+    private final SeekableInputStream inStream;
+    private final int max;
+
+    /* least recently released first */
+    private final List<ZRan.Extractor> idle = new ArrayList<ZRan.Extractor>();
+    private int count;
+    private boolean closed;
+    /* given to the extractors handed out */
+    volatile Metrics metrics;
+
+    ExtractorPool(SeekableInputStream inStream, int max) {
+        this.inStream = inStream;
+        this.max = max;
+    }
+
+    /**
+     * Take an extractor for reading at the given offset. This prefers an
+     * idle one that's positioned just before the offset, so that it needn't
+     * be restored from an access point, then creates one if there are less
+     * than the maximum, then takes the least recently used idle one, and
+     * waits if all are busy.
+     */
+    ZRan.Extractor acquire(CheckpointTable index, long offset) throws IOException {
+        ZRan.Extractor res = take(index, offset);
+        res.metrics = metrics;
+        return res;
+    }
+
+    private ZRan.Extractor take(CheckpointTable index, long offset) throws IOException {
+        synchronized (this) {
+            while (true) {
+                if (closed)
+                    throw new IllegalStateException("Stream closed");
+                long from = index.out(index.find(offset));
+                int best = -1;
+                for (int i = 0; i < idle.size(); ++i) {
+                    long p = idle.get(i).position();
+                    if (p >= from && p <= offset && (best < 0 || p > idle.get(best).position()))
+                        best = i;
+                }
+                if (best >= 0)
+                    return idle.remove(best);
+                if (count < max) {
+                    count++;
+                    break;
+                }
+                if (!idle.isEmpty())
+                    return idle.remove(0);
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for an extractor");
+                }
+            }
+        }
+        try {
+            return new ZRan.Extractor(inStream);
+        } catch (IOException e) {
+            discard(null);
+            throw e;
+        }
+    }
+
+    synchronized void release(ZRan.Extractor extractor) {
+        if (closed) {
+            extractor.close();
+            return;
+        }
+        idle.add(extractor);
+        notify();
+    }
+
+    /**
+     * Give up an extractor whose state can't be trusted anymore,
+     * for example after an error.
+     */
+    synchronized void discard(ZRan.Extractor extractor) {
+        if (extractor != null)
+            extractor.close();
+        count--;
+        notify();
+    }
+
+    synchronized void close() {
+        closed = true;
+        for (ZRan.Extractor extractor : idle)
+            extractor.close();
+        idle.clear();
+        notifyAll();
+    }
+}
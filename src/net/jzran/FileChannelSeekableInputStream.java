@@ -0,0 +1,68 @@
+package net.jzran;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file through a {@link FileChannel}. Positional reads into direct
+ * buffers go straight from the file into native memory, which is how the
+ * index reads compressed data, so nothing is copied through the heap.
+ */
+public class FileChannelSeekableInputStream extends SeekableInputStream {
+    private final FileChannel channel;
+    private long pos;
+
+    public FileChannelSeekableInputStream(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = channel.read(ByteBuffer.wrap(b, off, len), pos);
+        if(n > 0)
+            pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long toSkip = Math.max(0, Math.min(n, channel.size() - pos));
+        pos += toSkip;
+        return toSkip;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int)Math.min(Math.max(0, channel.size() - pos), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public void seek(long offset) throws IOException {
+        pos = offset;
+    }
+
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        return channel.read(ByteBuffer.wrap(b, off, len), position);
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        return channel.read(dst, position);
+    }
+}
@@ -2,6 +2,7 @@ package net.jzran;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 public class FileSeekableInputStream extends SeekableInputStream {
     private final RandomAccessFile raf;
@@ -27,7 +28,9 @@ public class FileSeekableInputStream extends SeekableInputStream {
 
     @Override
     public long skip(long n) throws IOException {
-        return n < 0 ? 0 : raf.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+        long toSkip = Math.max(0, Math.min(n, raf.length() - raf.getFilePointer()));
+        raf.seek(raf.getFilePointer() + toSkip);
+        return toSkip;
     }
 
     @Override
@@ -47,4 +50,14 @@ public class FileSeekableInputStream extends SeekableInputStream {
     public long length() throws IOException {
         return raf.length();
     }
+
+    @Override
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        return raf.getChannel().read(ByteBuffer.wrap(b, off, len), position);
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        return raf.getChannel().read(dst, position);
+    }
 }
@@ -0,0 +1,267 @@
+package net.jzran;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The index file format. All numbers are big-endian.
+ *
+ * <pre>
+ * header:  int magic "JZRI", int version, int window size, int count,
+ *          long decompressed size, long length of the windows section
+ * table:   count times: long out, long in, byte bits, int window length
+ * windows: count zlib streams, one per access point, in table order
+ * resume:  long out, long in, byte bits, byte prime, int window length,
+ *          window (since version 3)
+ * trailer: long source size, long source mtime,
+ *          int CRC-32 of header, table, resume up to the window
+ *          and the two fields above
+ * </pre>
+ *
+ * The bits byte holds the bit offset of an access point, with 0x80 set
+ * at the start of a gzip member; version 1 predates multi-member data and
+ * is read as well.
+ *
+ * The resume section tells where the scan that built the index stopped,
+ * for extending the index when data is appended: like an access point,
+ * with the byte before it for a bit offset. Its out is -1 if the scan
+ * stopped inside a deflate block. Versions before 3 are of data that
+ * ends at the end of a gzip member.
+ *
+ * The source size is the length of the gzip data the index was built
+ * from and the source mtime is the MTIME field of its gzip header, so
+ * that a stale index can be told from a fresh one.
+ */
+class IndexFormat {
+    static final int MAGIC = 0x4a5a5249;
+    static final int VERSION = 3;
+
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_SIZE = 21;
+    static final int RESUME_SIZE = 22;
+    static final int TRAILER_SIZE = 20;
+
+    static void write(RandomAccessGZip.Index index, OutputStream os) throws IOException {
+        CheckpointTable table;
+        long size;
+        ResumePoint end;
+        synchronized (index) {
+            // a lazy index may be growing: write what's indexed so far, as of one moment
+            table = index.table();
+            size = index.frontier();
+            end = index.resumePoint();
+        }
+        int n = table.size();
+        byte[][] windows = new byte[n][];
+        long windowsLength = 0;
+        for (int i = 0; i < n; ++i) {
+            windows[i] = table.compressedWindow(i);
+            windowsLength += windows[i].length;
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + n * ENTRY_SIZE);
+        head.putInt(MAGIC);
+        head.putInt(VERSION);
+        head.putInt(CheckpointTable.WINSIZE);
+        head.putInt(n);
+        head.putLong(size);
+        head.putLong(windowsLength);
+        for (int i = 0; i < n; ++i) {
+            head.putLong(table.out(i));
+            head.putLong(table.in(i));
+            head.put((byte) (table.bits(i) | (table.memberStart(i) ? CheckpointTable.MEMBER_START : 0)));
+            head.putInt(windows[i].length);
+        }
+        os.write(head.array());
+
+        for (int i = 0; i < n; ++i) {
+            os.write(windows[i]);
+        }
+
+        byte[] endWindow = (end == null) ? ZRan.NO_WINDOW : end.window;
+        ByteBuffer resume = ByteBuffer.allocate(RESUME_SIZE);
+        resume.putLong((end == null) ? -1 : end.out);
+        resume.putLong((end == null) ? -1 : end.in);
+        resume.put((byte) ((end == null) ? 0 : end.bits));
+        resume.put((byte) ((end == null) ? 0 : end.prime));
+        resume.putInt(endWindow.length);
+        os.write(resume.array());
+        os.write(endWindow);
+
+        ByteBuffer tail = ByteBuffer.allocate(TRAILER_SIZE);
+        tail.putLong(index.sourceLength());
+        tail.putLong(index.sourceMtime());
+        CRC32 crc = new CRC32();
+        crc.update(head.array());
+        crc.update(resume.array());
+        crc.update(tail.array(), 0, 16);
+        tail.putInt((int) crc.getValue());
+        os.write(tail.array());
+        os.flush();
+    }
+
+    /**
+     * Reads exactly the bytes of one index from the stream, in a few
+     * large reads; the stream needn't be buffered.
+     */
+    static RandomAccessGZip.Index read(InputStream is) throws IOException {
+        DataInputStream din = new DataInputStream(is);
+
+        byte[] headBytes = new byte[HEADER_SIZE];
+        din.readFully(headBytes);
+        Head head = new Head(headBytes);
+        byte[] tableBytes = new byte[head.tableSize()];
+        din.readFully(tableBytes);
+        head.parseTable(tableBytes);
+
+        CompressedWindowStore windows = new CompressedWindowStore(head.n);
+        for (int i = 0; i < head.n; ++i) {
+            windows.add(din, head.lengths[i]);
+        }
+
+        if (head.version >= 3) {
+            byte[] resumeBytes = new byte[RESUME_SIZE];
+            din.readFully(resumeBytes);
+            byte[] window = new byte[head.parseResume(resumeBytes)];
+            din.readFully(window);
+            head.resumeWindow(window);
+        }
+
+        byte[] tailBytes = new byte[TRAILER_SIZE];
+        din.readFully(tailBytes);
+        return head.finish(tailBytes, windows);
+    }
+
+    /**
+     * Maps an index file into memory. Only the table of access points is
+     * read onto the heap; windows are read from the mapping when needed.
+     */
+    static RandomAccessGZip.Index map(File file) throws IOException {
+        MappedFile mapped;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            mapped = new MappedFile(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+
+        byte[] headBytes = new byte[HEADER_SIZE];
+        mapped.read(0, headBytes, 0, HEADER_SIZE);
+        Head head = new Head(headBytes);
+        byte[] tableBytes = new byte[head.tableSize()];
+        mapped.read(HEADER_SIZE, tableBytes, 0, tableBytes.length);
+        head.parseTable(tableBytes);
+
+        long windowsStart = HEADER_SIZE + tableBytes.length;
+        long pos = windowsStart + head.windowsLength;
+        if (head.version >= 3) {
+            byte[] resumeBytes = new byte[RESUME_SIZE];
+            mapped.read(pos, resumeBytes, 0, RESUME_SIZE);
+            byte[] window = new byte[head.parseResume(resumeBytes)];
+            mapped.read(pos + RESUME_SIZE, window, 0, window.length);
+            head.resumeWindow(window);
+            pos += RESUME_SIZE + window.length;
+        }
+        byte[] tailBytes = new byte[TRAILER_SIZE];
+        mapped.read(pos, tailBytes, 0, TRAILER_SIZE);
+        return head.finish(tailBytes, new MappedWindowStore(mapped, windowsStart, head.lengths));
+    }
+
+    /**
+     * Header and table of access points, as they're being read.
+     */
+    private static class Head {
+        private final CRC32 crc = new CRC32();
+        private final int version;
+        private final int n;
+        private final long decompressedSize;
+        private final long windowsLength;
+        private long[] out;
+        private long[] in;
+        private byte[] bits;
+        private int[] lengths;
+        private ByteBuffer resume;
+        private ResumePoint end;
+
+        Head(byte[] headBytes) throws IOException {
+            ByteBuffer head = ByteBuffer.wrap(headBytes);
+            if (head.getInt() != MAGIC)
+                throw new IOException("Not a jzran index");
+            version = head.getInt();
+            if (version < 1 || version > VERSION)
+                throw new IOException("Unsupported index version: " + version);
+            int winsize = head.getInt();
+            if (winsize != CheckpointTable.WINSIZE)
+                throw new IOException("Unsupported window size: " + winsize);
+            n = head.getInt();
+            if (n <= 0 || (long) n * ENTRY_SIZE > Integer.MAX_VALUE)
+                throw new IOException("Bad number of access points: " + n);
+            decompressedSize = head.getLong();
+            windowsLength = head.getLong();
+            crc.update(headBytes);
+        }
+
+        int tableSize() {
+            return n * ENTRY_SIZE;
+        }
+
+        void parseTable(byte[] tableBytes) throws IOException {
+            ByteBuffer entries = ByteBuffer.wrap(tableBytes);
+            out = new long[n];
+            in = new long[n];
+            bits = new byte[n];
+            lengths = new int[n];
+            long total = 0;
+            for (int i = 0; i < n; ++i) {
+                out[i] = entries.getLong();
+                in[i] = entries.getLong();
+                bits[i] = entries.get();
+                lengths[i] = entries.getInt();
+                total += lengths[i];
+            }
+            if (total != windowsLength)
+                throw new IOException("Corrupt index: windows take " + total + " bytes, header says " + windowsLength);
+            crc.update(tableBytes);
+        }
+
+        /**
+         * @return the length of the window of the resume section.
+         */
+        int parseResume(byte[] resumeBytes) throws IOException {
+            resume = ByteBuffer.wrap(resumeBytes);
+            crc.update(resumeBytes);
+            int length = resume.getInt(RESUME_SIZE - 4);
+            if (length < 0 || length > 2 * CheckpointTable.WINSIZE)
+                throw new IOException("Corrupt index: resume window of " + length + " bytes");
+            return length;
+        }
+
+        void resumeWindow(byte[] window) {
+            long out = resume.getLong();
+            long in = resume.getLong();
+            int bits = resume.get() & 0xff;
+            int prime = resume.get() & 0xff;
+            if (out >= 0)
+                end = new ResumePoint(out, in, bits, prime, window);
+        }
+
+        RandomAccessGZip.Index finish(byte[] tailBytes, WindowStore windows) throws IOException {
+            ByteBuffer tail = ByteBuffer.wrap(tailBytes);
+            long sourceLength = tail.getLong();
+            long sourceMtime = tail.getLong();
+            crc.update(tailBytes, 0, 16);
+            if (tail.getInt() != (int) crc.getValue())
+                throw new IOException("Corrupt index: checksum mismatch");
+            CheckpointTable table = new CheckpointTable(out, in, bits, n, windows);
+            if (version < 3)
+                return new RandomAccessGZip.Index(table, decompressedSize, sourceLength, sourceMtime);
+            return new RandomAccessGZip.Index(table, decompressedSize, sourceLength, sourceMtime, end);
+        }
+    }
+}
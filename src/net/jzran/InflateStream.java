@@ -0,0 +1,116 @@
+package net.jzran;
+
+import com.sun.jna.Pointer;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * A raw zlib inflate stream, as used by extractors and index building: the
+ * calls of zlib they make, with the fields of z_stream they use. There are three backends: one
+ * calling zlib through java.lang.foreign, which doesn't copy the z_stream
+ * on every call, where the JDK has it; one through JNA otherwise; and one
+ * in Java, {@link JavaInflateStream}, where no zlib loads at all. Setting
+ * jzran.zlib.backend to "jna" or "java" picks one of the latter anyway.
+ */
+abstract class InflateStream {
+    private static final String PROPERTY = System.getProperty("jzran.zlib.backend");
+    private static final Constructor<? extends InflateStream> FOREIGN = foreign();
+    private static final String BACKEND = backend(PROPERTY);
+
+    private static Constructor<? extends InflateStream> foreign() {
+        if (PROPERTY != null && !"ffm".equals(PROPERTY))
+            return null;
+        try {
+            /* initializing it loads zlib, which may fail */
+            Class<?> c = Class.forName("net.jzran.FfmInflateStream", true, InflateStream.class.getClassLoader());
+            return c.asSubclass(InflateStream.class).getDeclaredConstructor();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (LinkageError e) {
+            /* compiled for a later JDK, or no zlib */
+            return null;
+        }
+    }
+
+    private static String backend(String property) {
+        if (FOREIGN != null)
+            return "ffm";
+        if ("java".equals(property) || "jna".equals(property))
+            return property;
+        try {
+            return (ZLib.INSTANCE != null) ? "jna" : "java";
+        } catch (LinkageError e) {
+            /* no zlib */
+            return "java";
+        }
+    }
+
+    /**
+     * A stream initialized for raw inflate, with the backend of
+     * {@link #backend()}.
+     */
+    static InflateStream raw() throws IOException {
+        return raw(BACKEND);
+    }
+
+    /**
+     * A stream initialized for raw inflate, with the given backend: "ffm",
+     * "jna" or "java".
+     */
+    static InflateStream raw(String backend) throws IOException {
+        if ("java".equals(backend))
+            return new JavaInflateStream();
+        if ("jna".equals(backend))
+            return new JnaInflateStream();
+        if (!"ffm".equals(backend))
+            throw new IllegalArgumentException("No such backend: " + backend);
+        if (FOREIGN == null)
+            throw new IllegalStateException("The ffm backend didn't load");
+        try {
+            return FOREIGN.newInstance();
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Name of the backend that {@link #raw()} uses.
+     */
+    static String backend() {
+        return BACKEND;
+    }
+
+    abstract int inflate(int flush);
+
+    abstract int inflateReset();
+
+    abstract int inflatePrime(int bits, int value);
+
+    abstract int inflateSetDictionary(Pointer dictionary, int length);
+
+    abstract void inflateEnd();
+
+    /**
+     * Set next_in and avail_in.
+     */
+    abstract void setInput(Pointer next, int avail);
+
+    abstract int availIn();
+
+    /**
+     * Set next_out and avail_out.
+     */
+    abstract void setOutput(Pointer next, int avail);
+
+    abstract int availOut();
+
+    abstract int dataType();
+}
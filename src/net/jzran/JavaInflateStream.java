@@ -0,0 +1,686 @@
+package net.jzran;
+
+import com.sun.jna.Pointer;
+
+import java.util.Arrays;
+
+/**
+ * A raw inflate stream written in Java, so that neither indexing nor
+ * reading needs native zlib. It follows zlib where they rely on it: Z_BLOCK stops at
+ * block boundaries, data_type has the bits left over, whether the block
+ * is the last one and whether at a boundary, and the stream can be primed
+ * with bits and preset with a window.
+ *
+ * Input is copied from next_in into an array in pieces; output is produced
+ * into an array after the window that came before it, and copied to
+ * next_out. Huffman codes are decoded with a table indexed by their first
+ * bits, with subtables for longer codes, rebuilt in place for each block,
+ * so nothing is allocated per block. A block header or a code is only
+ * taken whole: if the input ends inside one, what's left of the input is
+ * kept here until more is set, and avail_in reads 0 meanwhile, as if zlib
+ * had taken it in.
+ */
+class JavaInflateStream extends InflateStream {
+    private static final int WINSIZE = CheckpointTable.WINSIZE;
+    private static final int MAX_MATCH = 258;
+    /* the output array: the window and what follows it */
+    private static final int OUT_SIZE = 4 * WINSIZE;
+    private static final int IN_SIZE = 1 << 16;
+    /* enough input for any block header or code */
+    private static final int MIN_INPUT = 1024;
+
+    private static final int LIT_BITS = 10;
+    private static final int DIST_BITS = 8;
+    private static final int CLEN_BITS = 7;
+    private static final int MAX_BITS = 15;
+    /* first level, and a subtable for each code that may need one */
+    private static final int LIT_TABLE = (1 << LIT_BITS) + 288 * (1 << (MAX_BITS - LIT_BITS));
+    private static final int DIST_TABLE = (1 << DIST_BITS) + 32 * (1 << (MAX_BITS - DIST_BITS));
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+            35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+    private static final int[] LENGTH_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+            3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+    private static final int[] DIST_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+            257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+    private static final int[] DIST_EXTRA = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+            7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+    private static final int[] CLEN_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    private static final int[] FIXED_LIT = new int[LIT_TABLE];
+    private static final int[] FIXED_DIST = new int[DIST_TABLE];
+
+    static {
+        int[] lengths = new int[288];
+        Arrays.fill(lengths, 0, 144, 8);
+        Arrays.fill(lengths, 144, 256, 9);
+        Arrays.fill(lengths, 256, 280, 7);
+        Arrays.fill(lengths, 280, 288, 8);
+        int[] count = new int[MAX_BITS + 1];
+        int[] next = new int[MAX_BITS + 1];
+        build(FIXED_LIT, LIT_BITS, lengths, 0, 288, false, count, next);
+        Arrays.fill(lengths, 0, 32, 5);
+        build(FIXED_DIST, DIST_BITS, lengths, 0, 32, false, count, next);
+    }
+
+    /* modes */
+    private static final int HEADER = 0;
+    private static final int STORED = 1;
+    private static final int CODES = 2;
+    private static final int DONE = 3;
+    private static final int BAD = 4;
+
+    /* what a step of decoding came to */
+    private static final int GO = 0;
+    private static final int NEED_INPUT = 1;
+    private static final int NEED_OUTPUT = 2;
+    private static final int ERROR = 3;
+
+    /* input not decoded yet: in[inPos..inEnd), then nextInLeft bytes at
+       nextIn + nextInPos */
+    private final byte[] in = new byte[IN_SIZE];
+    private int inPos;
+    private int inEnd;
+    private Pointer nextIn;
+    private long nextInPos;
+    private int nextInLeft;
+    /* bits taken from the input, first bit lowest */
+    private long bitBuf;
+    private int bitCnt;
+    /* the input ran out inside a header or code */
+    private boolean starved;
+
+    /* output, after up to a window of what came before it; out[flushed..pos)
+       is yet to be copied to nextOut */
+    private final byte[] out = new byte[OUT_SIZE];
+    private int pos;
+    private int flushed;
+    private Pointer nextOut;
+    private long nextOutPos;
+    private int availOut;
+
+    private int mode;
+    /* the block being decoded is the last one */
+    private boolean last;
+    /* a block ended during this call of inflate() */
+    private boolean blockEnded;
+    private int storedLeft;
+    /* the rest of a match that didn't fit the output */
+    private int matchLeft;
+    private int matchDist;
+
+    private int[] lit;
+    private int[] dist;
+    private final int[] dynamicLit = new int[LIT_TABLE];
+    private final int[] dynamicDist = new int[DIST_TABLE];
+    private final int[] clen = new int[1 << CLEN_BITS];
+    private final int[] lengths = new int[320];
+    private final int[] count = new int[MAX_BITS + 1];
+    private final int[] next = new int[MAX_BITS + 1];
+
+    JavaInflateStream() {
+        inflateReset();
+    }
+
+    /*
+     * Fill table for the code whose symbols 0..n-1 have the given lengths.
+     * An entry of the first level, indexed by the first bits bits of a
+     * code, is the symbol << 4 | the length of its code, or the complement
+     * of the offset of a subtable << 4 | the bits that indexes it with;
+     * 0 is an invalid code.
+     *
+     * @param complete whether the code must be complete; otherwise a code
+     *   of a single symbol, or of none, is allowed too.
+     * @return false if the lengths don't make a valid code.
+     */
+    private static boolean build(int[] table, int bits, int[] lengths, int off, int n, boolean complete,
+                                 int[] count, int[] next) {
+        Arrays.fill(count, 0);
+        for (int i = 0; i < n; ++i)
+            count[lengths[off + i]]++;
+        count[0] = 0;
+        int left = 1;
+        for (int len = 1; len <= MAX_BITS; ++len) {
+            left = (left << 1) - count[len];
+            if (left < 0)
+                return false;
+        }
+        int max = MAX_BITS;
+        while (max > 0 && count[max] == 0)
+            max--;
+        if (left > 0 && (complete || max > 1))
+            return false;
+
+        next[1] = 0;
+        for (int len = 2; len <= MAX_BITS; ++len)
+            next[len] = (next[len - 1] + count[len - 1]) << 1;
+        int size = 1 << bits;
+        int subBits = Math.max(max - bits, 0);
+        int free = size;
+        Arrays.fill(table, 0, size, 0);
+        for (int sym = 0; sym < n; ++sym) {
+            int len = lengths[off + sym];
+            if (len == 0)
+                continue;
+            /* deflate sends codes first bit first */
+            int code = Integer.reverse(next[len]++) >>> (32 - len);
+            int entry = (sym << 4) | len;
+            if (len <= bits) {
+                for (int i = code; i < size; i += 1 << len)
+                    table[i] = entry;
+                continue;
+            }
+            int first = code & (size - 1);
+            int base;
+            if (table[first] < 0) {
+                base = ~table[first] >>> 4;
+            } else {
+                base = free;
+                free += 1 << subBits;
+                Arrays.fill(table, base, free, 0);
+                table[first] = ~((base << 4) | subBits);
+            }
+            for (int i = code >>> bits; i < (1 << subBits); i += 1 << (len - bits))
+                table[base + i] = entry;
+        }
+        return true;
+    }
+
+    int inflateReset() {
+        mode = HEADER;
+        last = false;
+        inPos = inEnd = 0;
+        bitBuf = 0;
+        bitCnt = 0;
+        starved = false;
+        pos = flushed = 0;
+        storedLeft = 0;
+        matchLeft = 0;
+        lit = dist = null;
+        return ZLib.Z_OK;
+    }
+
+    int inflatePrime(int bits, int value) {
+        bitBuf |= (long) (value & ((1 << bits) - 1)) << bitCnt;
+        bitCnt += bits;
+        return ZLib.Z_OK;
+    }
+
+    int inflateSetDictionary(Pointer dictionary, int length) {
+        int n = Math.min(length, WINSIZE);
+        dictionary.read(length - n, out, 0, n);
+        pos = flushed = n;
+        return ZLib.Z_OK;
+    }
+
+    void inflateEnd() {
+        nextIn = null;
+        nextOut = null;
+    }
+
+    /* next_in and next_out are copied from and to with Pointer.read and
+       write, as getByteBuffer would make a new view every time */
+    void setInput(Pointer next, int avail) {
+        nextIn = next;
+        nextInPos = 0;
+        nextInLeft = (next == null) ? 0 : Math.max(avail, 0);
+        starved = false;
+    }
+
+    /* what's kept of earlier input when more was set was counted as taken
+       in then, and is decoded first; only bytes of next_in count */
+    int availIn() {
+        if (starved)
+            return 0;
+        return nextInLeft + (int) Math.min((inEnd - inPos) + (bitCnt >>> 3), nextInPos);
+    }
+
+    void setOutput(Pointer next, int avail) {
+        nextOut = next;
+        nextOutPos = 0;
+        availOut = (next == null) ? 0 : Math.max(avail, 0);
+    }
+
+    int availOut() {
+        return availOut;
+    }
+
+    int dataType() {
+        return (bitCnt & 7) + (last ? 64 : 0) + (mode == HEADER ? 128 : 0);
+    }
+
+    int inflate(int flush) {
+        int inBefore = availIn();
+        int outBefore = availOut;
+        int ret = run(flush);
+        flushOutput();
+        if (ret == ZLib.Z_OK && availIn() == inBefore && availOut == outBefore)
+            return ZLib.Z_BUF_ERROR;
+        return ret;
+    }
+
+    private int run(int flush) {
+        blockEnded = false;
+        while (true) {
+            if (inEnd - inPos < MIN_INPUT)
+                refill();
+            if (pos > OUT_SIZE - MAX_MATCH)
+                slide();
+            int step;
+            switch (mode) {
+                case HEADER:
+                    if (blockEnded && flush == ZLib.Z_BLOCK)
+                        return ZLib.Z_OK;
+                    step = header();
+                    break;
+                case STORED:
+                    step = stored();
+                    break;
+                case CODES:
+                    step = codes();
+                    break;
+                case DONE:
+                    return ZLib.Z_STREAM_END;
+                default:
+                    return ZLib.Z_DATA_ERROR;
+            }
+            if (step == ERROR) {
+                mode = BAD;
+                return ZLib.Z_DATA_ERROR;
+            }
+            if (step == NEED_OUTPUT)
+                return ZLib.Z_OK;
+            if (step == NEED_INPUT) {
+                if (nextInLeft > 0) {
+                    refill();
+                    continue;
+                }
+                starved = true;
+                return ZLib.Z_OK;
+            }
+        }
+    }
+
+    /* move what's left of the input array to its start, and add to it from nextIn */
+    private void refill() {
+        if (inPos > 0) {
+            System.arraycopy(in, inPos, in, 0, inEnd - inPos);
+            inEnd -= inPos;
+            inPos = 0;
+        }
+        int n = Math.min(IN_SIZE - inEnd, nextInLeft);
+        if (n == 0)
+            return;
+        nextIn.read(nextInPos, in, inEnd, n);
+        nextInPos += n;
+        nextInLeft -= n;
+        inEnd += n;
+    }
+
+    /* keep the last window of output and make room after it */
+    private void slide() {
+        flushOutput();
+        System.arraycopy(out, pos - WINSIZE, out, 0, WINSIZE);
+        pos = flushed = WINSIZE;
+    }
+
+    private void flushOutput() {
+        int n = pos - flushed;
+        if (n == 0)
+            return;
+        nextOut.write(nextOutPos, out, flushed, n);
+        nextOutPos += n;
+        availOut -= n;
+        flushed = pos;
+    }
+
+    /* room left for output in this call */
+    private int room() {
+        return availOut - (pos - flushed);
+    }
+
+    private void endBlock() {
+        mode = HEADER;
+        blockEnded = true;
+    }
+
+    /* make sure there are n bits, unless the input ends first */
+    private boolean need(int n) {
+        while (bitCnt < n) {
+            if (inPos == inEnd)
+                return false;
+            bitBuf |= (in[inPos++] & 0xffL) << bitCnt;
+            bitCnt += 8;
+        }
+        return true;
+    }
+
+    private int bits(int n) {
+        int res = (int) bitBuf & ((1 << n) - 1);
+        bitBuf >>>= n;
+        bitCnt -= n;
+        return res;
+    }
+
+    /*
+     * The next symbol of a code, -1 if the input ends inside its code, -2
+     * if it's not a valid code.
+     */
+    private int decode(int[] table, int bits) {
+        need(MAX_BITS);
+        int e = table[(int) bitBuf & ((1 << bits) - 1)];
+        if (e < 0) {
+            int link = ~e;
+            e = table[(link >>> 4) + ((int) (bitBuf >>> bits) & ((1 << (link & 15)) - 1))];
+        }
+        int len = e & 15;
+        if (len == 0)
+            return (bitCnt < MAX_BITS) ? -1 : -2;
+        if (len > bitCnt)
+            return -1;
+        bitBuf >>>= len;
+        bitCnt -= len;
+        return e >>> 4;
+    }
+
+    /* take a block header whole, or nothing of it */
+    private int header() {
+        long markBits = bitBuf;
+        int markCnt = bitCnt;
+        int markPos = inPos;
+        int step = readHeader();
+        if (step == NEED_INPUT) {
+            bitBuf = markBits;
+            bitCnt = markCnt;
+            inPos = markPos;
+        }
+        return step;
+    }
+
+    private int readHeader() {
+        if (last) {
+            /* like zlib, the stream ends at the header after the last block */
+            bits(bitCnt & 7);
+            mode = DONE;
+            return GO;
+        }
+        if (!need(3))
+            return NEED_INPUT;
+        int h = bits(3);
+        switch (h >>> 1) {
+            case 0:
+                bits(bitCnt & 7);
+                if (!need(32))
+                    return NEED_INPUT;
+                int len = bits(16);
+                if (len != (~bits(16) & 0xffff))
+                    return ERROR;
+                storedLeft = len;
+                mode = STORED;
+                break;
+            case 1:
+                lit = FIXED_LIT;
+                dist = FIXED_DIST;
+                mode = CODES;
+                break;
+            case 2:
+                int step = readTables();
+                if (step != GO)
+                    return step;
+                lit = dynamicLit;
+                dist = dynamicDist;
+                mode = CODES;
+                break;
+            default:
+                return ERROR;
+        }
+        last = (h & 1) != 0;
+        return GO;
+    }
+
+    private int readTables() {
+        if (!need(14))
+            return NEED_INPUT;
+        int nlen = bits(5) + 257;
+        int ndist = bits(5) + 1;
+        int ncode = bits(4) + 4;
+        if (nlen > 286 || ndist > 30)
+            return ERROR;
+        Arrays.fill(lengths, 0, 19, 0);
+        for (int i = 0; i < ncode; ++i) {
+            if (!need(3))
+                return NEED_INPUT;
+            lengths[CLEN_ORDER[i]] = bits(3);
+        }
+        if (!build(clen, CLEN_BITS, lengths, 0, 19, true, count, next))
+            return ERROR;
+
+        for (int n = 0; n < nlen + ndist; ) {
+            int sym = decode(clen, CLEN_BITS);
+            if (sym < 0)
+                return (sym == -1) ? NEED_INPUT : ERROR;
+            if (sym < 16) {
+                lengths[n++] = sym;
+                continue;
+            }
+            int value = 0;
+            int repeat;
+            if (sym == 16) {
+                if (n == 0)
+                    return ERROR;
+                if (!need(2))
+                    return NEED_INPUT;
+                value = lengths[n - 1];
+                repeat = 3 + bits(2);
+            } else if (sym == 17) {
+                if (!need(3))
+                    return NEED_INPUT;
+                repeat = 3 + bits(3);
+            } else {
+                if (!need(7))
+                    return NEED_INPUT;
+                repeat = 11 + bits(7);
+            }
+            if (n + repeat > nlen + ndist)
+                return ERROR;
+            while (repeat-- > 0)
+                lengths[n++] = value;
+        }
+        if (lengths[256] == 0)
+            return ERROR;
+        if (!build(dynamicLit, LIT_BITS, lengths, 0, nlen, false, count, next))
+            return ERROR;
+        if (!build(dynamicDist, DIST_BITS, lengths, nlen, ndist, false, count, next))
+            return ERROR;
+        return GO;
+    }
+
+    private int stored() {
+        while (storedLeft > 0) {
+            int room = Math.min(room(), OUT_SIZE - pos);
+            if (room == 0)
+                return (room() == 0) ? NEED_OUTPUT : GO;
+            if (bitCnt >= 8) {
+                out[pos++] = (byte) bitBuf;
+                bitBuf >>>= 8;
+                bitCnt -= 8;
+                storedLeft--;
+                continue;
+            }
+            int n = Math.min(Math.min(storedLeft, room), inEnd - inPos);
+            if (n == 0)
+                return NEED_INPUT;
+            System.arraycopy(in, inPos, out, pos, n);
+            inPos += n;
+            pos += n;
+            storedLeft -= n;
+        }
+        endBlock();
+        return GO;
+    }
+
+    private int codes() {
+        if (matchLeft > 0) {
+            copyMatch();
+            if (matchLeft > 0)
+                return (room() == 0) ? NEED_OUTPUT : GO;
+        }
+        int step = fastCodes();
+        if (step != NEED_INPUT)
+            return step;
+        return slowCode();
+    }
+
+    /*
+     * Decode while there's surely enough input for a code and output for a
+     * match, with the state in locals.
+     *
+     * @return NEED_INPUT when near the end of either.
+     */
+    private int fastCodes() {
+        final int[] lit = this.lit;
+        final int[] dist = this.dist;
+        final byte[] in = this.in;
+        final byte[] out = this.out;
+        long bitBuf = this.bitBuf;
+        int bitCnt = this.bitCnt;
+        int inPos = this.inPos;
+        int pos = this.pos;
+        final int inLimit = inEnd - 8;
+        final int outLimit = Math.min(OUT_SIZE, pos + room()) - MAX_MATCH;
+        int step = NEED_INPUT;
+        while (pos < outLimit && inPos < inLimit) {
+            /* 57 bits at least: enough for a length and a distance */
+            while (bitCnt <= 56) {
+                bitBuf |= (in[inPos++] & 0xffL) << bitCnt;
+                bitCnt += 8;
+            }
+            int e = lit[(int) bitBuf & ((1 << LIT_BITS) - 1)];
+            if (e < 0) {
+                int link = ~e;
+                e = lit[(link >>> 4) + ((int) (bitBuf >>> LIT_BITS) & ((1 << (link & 15)) - 1))];
+            }
+            int n = e & 15;
+            if (n == 0) {
+                step = ERROR;
+                break;
+            }
+            bitBuf >>>= n;
+            bitCnt -= n;
+            int sym = e >>> 4;
+            if (sym < 256) {
+                out[pos++] = (byte) sym;
+                continue;
+            }
+            if (sym == 256) {
+                endBlock();
+                step = GO;
+                break;
+            }
+            sym -= 257;
+            if (sym >= 29) {
+                step = ERROR;
+                break;
+            }
+            int extra = LENGTH_EXTRA[sym];
+            int len = LENGTH_BASE[sym] + ((int) bitBuf & ((1 << extra) - 1));
+            bitBuf >>>= extra;
+            bitCnt -= extra;
+
+            e = dist[(int) bitBuf & ((1 << DIST_BITS) - 1)];
+            if (e < 0) {
+                int link = ~e;
+                e = dist[(link >>> 4) + ((int) (bitBuf >>> DIST_BITS) & ((1 << (link & 15)) - 1))];
+            }
+            n = e & 15;
+            sym = e >>> 4;
+            if (n == 0 || sym >= 30) {
+                step = ERROR;
+                break;
+            }
+            bitBuf >>>= n;
+            bitCnt -= n;
+            extra = DIST_EXTRA[sym];
+            int d = DIST_BASE[sym] + ((int) bitBuf & ((1 << extra) - 1));
+            bitBuf >>>= extra;
+            bitCnt -= extra;
+            if (d > pos) {
+                step = ERROR;
+                break;
+            }
+            copy(out, pos, d, len);
+            pos += len;
+        }
+        this.bitBuf = bitBuf;
+        this.bitCnt = bitCnt;
+        this.inPos = inPos;
+        this.pos = pos;
+        return step;
+    }
+
+    /* decode one code, taking it whole or not at all */
+    private int slowCode() {
+        if (room() == 0)
+            return NEED_OUTPUT;
+        if (pos > OUT_SIZE - MAX_MATCH)
+            return GO;
+        long markBits = bitBuf;
+        int markCnt = bitCnt;
+        int markPos = inPos;
+        int sym = decode(lit, LIT_BITS);
+        if (sym == -2 || sym >= 286)
+            return ERROR;
+        if (sym >= 0 && sym < 256) {
+            out[pos++] = (byte) sym;
+            return GO;
+        }
+        if (sym == 256) {
+            endBlock();
+            return GO;
+        }
+        if (sym > 256) {
+            sym -= 257;
+            if (need(LENGTH_EXTRA[sym])) {
+                int len = LENGTH_BASE[sym] + bits(LENGTH_EXTRA[sym]);
+                int ds = decode(dist, DIST_BITS);
+                if (ds == -2 || ds >= 30)
+                    return ERROR;
+                if (ds >= 0 && need(DIST_EXTRA[ds])) {
+                    int d = DIST_BASE[ds] + bits(DIST_EXTRA[ds]);
+                    if (d > pos)
+                        return ERROR;
+                    matchLeft = len;
+                    matchDist = d;
+                    copyMatch();
+                    return GO;
+                }
+            }
+        }
+        bitBuf = markBits;
+        bitCnt = markCnt;
+        inPos = markPos;
+        return NEED_INPUT;
+    }
+
+    private void copyMatch() {
+        int n = Math.min(matchLeft, Math.min(room(), OUT_SIZE - pos));
+        copy(out, pos, matchDist, n);
+        pos += n;
+        matchLeft -= n;
+    }
+
+    private static void copy(byte[] out, int pos, int dist, int len) {
+        int from = pos - dist;
+        if (dist >= len) {
+            System.arraycopy(out, from, out, pos, len);
+        } else {
+            /* overlapping: the match repeats the last dist bytes */
+            for (int i = 0; i < len; ++i)
+                out[pos + i] = out[from + i];
+        }
+    }
+}
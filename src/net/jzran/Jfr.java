@@ -0,0 +1,103 @@
+package net.jzran;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The flight recorder events behind {@link Events}; only loaded if the JVM
+ * has the flight recorder.
+ */
+class Jfr {
+    private static final EventType SEEK = EventType.getEventType(SeekEvent.class);
+    private static final EventType INDEX_BUILD = EventType.getEventType(IndexBuildEvent.class);
+
+    @Name("net.jzran.Seek")
+    @Label("Seek")
+    @Category("jzran")
+    @Description("An extractor getting to a position in decompressed data")
+    static class SeekEvent extends Event {
+        @Label("Offset")
+        @DataAmount
+        long offset;
+
+        @Label("From")
+        @Description("Where the extractor was")
+        @DataAmount
+        long from;
+
+        @Label("Restored")
+        @Description("Whether the inflate state was restored from an access point")
+        boolean restored;
+
+        @Label("Discarded")
+        @Description("Decompressed data inflated to get there")
+        @DataAmount
+        long discarded;
+    }
+
+    @Name("net.jzran.IndexBuild")
+    @Label("Index Build")
+    @Category("jzran")
+    @Description("A scan of gzip data adding access points to an index")
+    static class IndexBuildEvent extends Event {
+        @Label("Span")
+        @DataAmount
+        long span;
+
+        @Label("Compressed")
+        @DataAmount
+        long compressed;
+
+        @Label("Decompressed")
+        @DataAmount
+        long decompressed;
+
+        @Label("Access Points")
+        int points;
+    }
+
+    static Object seeking() {
+        if (!SEEK.isEnabled())
+            return null;
+        SeekEvent event = new SeekEvent();
+        event.begin();
+        return event;
+    }
+
+    static void seeked(Object started, long offset, long from, boolean restored, long discarded) {
+        SeekEvent event = (SeekEvent) started;
+        event.end();
+        if (!event.shouldCommit())
+            return;
+        event.offset = offset;
+        event.from = from;
+        event.restored = restored;
+        event.discarded = discarded;
+        event.commit();
+    }
+
+    static Object indexBuilding() {
+        if (!INDEX_BUILD.isEnabled())
+            return null;
+        IndexBuildEvent event = new IndexBuildEvent();
+        event.begin();
+        return event;
+    }
+
+    static void indexBuilt(Object started, long span, long compressed, long decompressed, int points) {
+        IndexBuildEvent event = (IndexBuildEvent) started;
+        event.end();
+        if (!event.shouldCommit())
+            return;
+        event.span = span;
+        event.compressed = compressed;
+        event.decompressed = decompressed;
+        event.points = points;
+        event.commit();
+    }
+}
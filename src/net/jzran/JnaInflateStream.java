@@ -0,0 +1,109 @@
+package net.jzran;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+
+/**
+ * An inflate stream calling zlib through JNA. Once initialized, the
+ * z_stream isn't copied to native memory and back on every call, as JNA
+ * would do with all its fields, by reflection; the fields used are read
+ * and written in native memory instead, at offsets worked out like the C
+ * compiler does. The calls are direct mapped, so that they don't go
+ * through a proxy either, which boxes their arguments.
+ */
+class JnaInflateStream extends InflateStream {
+    private static final ZLib Z = ZLib.INSTANCE;
+
+    private static final int NEXT_IN = 0;
+    private static final int AVAIL_IN = Pointer.SIZE;
+    private static final int NEXT_OUT = align(align(AVAIL_IN + 4, NativeLong.SIZE) + NativeLong.SIZE, Pointer.SIZE);
+    private static final int AVAIL_OUT = NEXT_OUT + Pointer.SIZE;
+    /* after total_out, msg, state, zalloc, zfree and opaque */
+    private static final int DATA_TYPE =
+            align(align(AVAIL_OUT + 4, NativeLong.SIZE) + NativeLong.SIZE, Pointer.SIZE) + 5 * Pointer.SIZE;
+
+    private final z_stream stream = new z_stream();
+    private final Pointer memory;
+
+    JnaInflateStream() throws IOException {
+        stream.zalloc = null;
+        stream.zfree = null;
+        stream.opaque = null;
+        stream.avail_in = 0;
+        stream.next_in = null;
+        int init = Z.inflateInit2_(stream, -15, Z.zlibVersion(), ZLib.STREAM_SIZE);
+        if (init != ZLib.Z_OK)
+            throw new IOException("zlib error: " + init);
+        stream.setAutoSynch(false);
+        memory = stream.getPointer();
+    }
+
+    private static int align(int offset, int alignment) {
+        return (offset + alignment - 1) & -alignment;
+    }
+
+    /* the calls on an initialized stream, bound to the zlib that ZLib loaded */
+    private static class Direct {
+        static {
+            Library.Handler handler = (Library.Handler) Proxy.getInvocationHandler(ZLib.INSTANCE);
+            Native.register(Direct.class, handler.getNativeLibrary());
+        }
+
+        static native int inflate(Pointer stream, int flush);
+
+        static native int inflateReset(Pointer stream);
+
+        static native int inflatePrime(Pointer stream, int bits, int value);
+
+        static native int inflateSetDictionary(Pointer stream, Pointer dictionary, int length);
+
+        static native int inflateEnd(Pointer stream);
+    }
+
+    int inflate(int flush) {
+        return Direct.inflate(memory, flush);
+    }
+
+    int inflateReset() {
+        return Direct.inflateReset(memory);
+    }
+
+    int inflatePrime(int bits, int value) {
+        return Direct.inflatePrime(memory, bits, value);
+    }
+
+    int inflateSetDictionary(Pointer dictionary, int length) {
+        return Direct.inflateSetDictionary(memory, dictionary, length);
+    }
+
+    void inflateEnd() {
+        Direct.inflateEnd(memory);
+    }
+
+    void setInput(Pointer next, int avail) {
+        memory.setPointer(NEXT_IN, next);
+        memory.setInt(AVAIL_IN, avail);
+    }
+
+    int availIn() {
+        return memory.getInt(AVAIL_IN);
+    }
+
+    void setOutput(Pointer next, int avail) {
+        memory.setPointer(NEXT_OUT, next);
+        memory.setInt(AVAIL_OUT, avail);
+    }
+
+    int availOut() {
+        return memory.getInt(AVAIL_OUT);
+    }
+
+    int dataType() {
+        return memory.getInt(DATA_TYPE);
+    }
+}
@@ -0,0 +1,66 @@
+package net.jzran;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only mapping of a whole file, of any size: the file is
+ * mapped as a sequence of segments of at most 1gb each.
+ */
+class MappedFile {
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    private final int segmentSize;
+    private final MappedByteBuffer[] segments;
+    private final long length;
+
+    MappedFile(FileChannel channel) throws IOException {
+        this(channel, SEGMENT_SIZE);
+    }
+
+    MappedFile(FileChannel channel, int segmentSize) throws IOException {
+        this.segmentSize = segmentSize;
+        this.length = channel.size();
+        int n = (int) ((length + segmentSize - 1) / segmentSize);
+        this.segments = new MappedByteBuffer[n];
+        for (int i = 0; i < n; ++i) {
+            long start = (long) i * segmentSize;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, length - start));
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Copy len bytes starting at the given position of the file.
+     * Safe to call from several threads at once.
+     */
+    void read(long pos, byte[] dst, int off, int len) throws IOException {
+        if (pos < 0 || pos + len > length)
+            throw new EOFException("Read of " + len + " bytes at " + pos + " is past the end of the file (" + length + ")");
+        while (len > 0) {
+            ByteBuffer segment = segments[(int) (pos / segmentSize)].duplicate();
+            segment.position((int) (pos % segmentSize));
+            int n = Math.min(len, segment.remaining());
+            segment.get(dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * The mapped data from the given position to the end of its segment,
+     * starting at position 0 of the returned buffer.
+     */
+    ByteBuffer slice(long pos) {
+        ByteBuffer segment = segments[(int) (pos / segmentSize)].duplicate();
+        segment.position((int) (pos % segmentSize));
+        return segment.slice();
+    }
+}
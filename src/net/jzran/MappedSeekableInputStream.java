@@ -0,0 +1,127 @@
+package net.jzran;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file of any size through a memory mapping, made of segments of
+ * at most 1gb. Reads are served from the page cache without system calls,
+ * and the index inflates the compressed data in place, straight from the
+ * mapping. Safe for positional reads from several threads at once.
+ */
+public class MappedSeekableInputStream extends SeekableInputStream {
+    private final MappedFile file;
+    private long pos;
+    private boolean isClosed;
+
+    public MappedSeekableInputStream(File file) throws IOException {
+        this(map(file));
+    }
+
+    /**
+     * Map the whole file of the channel; the channel may be closed afterwards.
+     */
+    public MappedSeekableInputStream(FileChannel channel) throws IOException {
+        this(new MappedFile(channel));
+    }
+
+    MappedSeekableInputStream(MappedFile file) {
+        this.file = file;
+    }
+
+    private static MappedFile map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new MappedFile(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void ensureOpen() {
+        if(isClosed) {
+            throw new IllegalStateException("Stream closed");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        if(pos >= file.length())
+            return -1;
+        return file.slice(pos++).get(0) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = read(pos, b, off, len);
+        if(n > 0)
+            pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        long toSkip = Math.max(0, Math.min(n, file.length() - pos));
+        pos += toSkip;
+        return toSkip;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return (int)Math.min(Math.max(0, file.length() - pos), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Drop the reference to the mapping; it's unmapped when garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        isClosed = true;
+    }
+
+    public void seek(long offset) throws IOException {
+        ensureOpen();
+        if(offset < 0)
+            throw new IllegalArgumentException("Negative offset: " + offset);
+        pos = offset;
+    }
+
+    public long length() throws IOException {
+        return file.length();
+    }
+
+    @Override
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if(position >= file.length())
+            return -1;
+        int n = (int)Math.min(len, file.length() - position);
+        file.read(position, b, off, n);
+        return n;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if(position >= file.length())
+            return -1;
+        ByteBuffer src = file.slice(position);
+        int n = Math.min(dst.remaining(), src.remaining());
+        src.limit(n);
+        dst.put(src);
+        return n;
+    }
+
+    @Override
+    ByteBuffer mapped(long position) {
+        if(isClosed || position >= file.length())
+            return null;
+        return file.slice(position);
+    }
+}
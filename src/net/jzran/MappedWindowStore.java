@@ -0,0 +1,59 @@
+package net.jzran;
+
+import java.io.IOException;
+
+/**
+ * Windows left in a memory-mapped index file: only their offsets are
+ * kept on the heap, and a window is read from the mapping and inflated
+ * each time an extractor restores from it.
+ */
+class MappedWindowStore extends WindowStore {
+    private static final ThreadLocal<byte[]> BLOB = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[2 * WINSIZE];
+        }
+    };
+
+    private final MappedFile file;
+    private final long[] offset;
+    private final int[] length;
+
+    /**
+     * @param start position of the first window in the file.
+     * @param length length of each window; windows follow each other.
+     */
+    MappedWindowStore(MappedFile file, long start, int[] length) {
+        this.file = file;
+        this.length = length;
+        this.offset = new long[length.length];
+        long pos = start;
+        for (int i = 0; i < length.length; ++i) {
+            offset[i] = pos;
+            pos += length[i];
+        }
+    }
+
+    int size() {
+        return length.length;
+    }
+
+    int length(int i) {
+        return length[i];
+    }
+
+    void read(int i, byte[] window) throws IOException {
+        byte[] blob = BLOB.get();
+        if (blob.length < length[i]) {
+            blob = new byte[length[i]];
+            BLOB.set(blob);
+        }
+        file.read(offset[i], blob, 0, length[i]);
+        inflate(i, blob, 0, length[i], window);
+    }
+
+    byte[] compressed(int i) throws IOException {
+        byte[] res = new byte[length[i]];
+        file.read(offset[i], res, 0, length[i]);
+        return res;
+    }
+}
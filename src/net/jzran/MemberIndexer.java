@@ -0,0 +1,119 @@
+package net.jzran;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Indexes gzip data made of several members in parallel, when the offsets
+ * of the members are known in advance: runs of consecutive members are
+ * indexed independently and the tables are then joined.
+ */
+class MemberIndexer {
+    private static final long MIN_PART = 1L << 20;
+
+    private final SeekableInputStream input;
+    private final long span;
+    /* offsets of the first member of each part */
+    private final long[] parts;
+
+    MemberIndexer(SeekableInputStream input, long[] members, long span, int parallelism) {
+        if (members.length == 0 || members[0] != 0)
+            throw new IllegalArgumentException("The first member must start at offset 0");
+        for (int i = 1; i < members.length; ++i) {
+            if (members[i] <= members[i - 1])
+                throw new IllegalArgumentException("Member offsets must be increasing: " +
+                        members[i - 1] + ", " + members[i]);
+        }
+        this.input = input;
+        this.span = span;
+        this.parts = parts(members, parallelism);
+    }
+
+    /* group members into a few parts per thread */
+    private static long[] parts(long[] members, int parallelism) {
+        long target = Math.max(MIN_PART, members[members.length - 1] / (4L * parallelism));
+        List<Long> starts = new ArrayList<Long>();
+        long last = -target;
+        for (long member : members) {
+            if (member - last >= target) {
+                starts.add(member);
+                last = member;
+            }
+        }
+        long[] res = new long[starts.size()];
+        for (int i = 0; i < res.length; ++i)
+            res[i] = starts.get(i);
+        return res;
+    }
+
+    /**
+     * @return the table, with the totals of the whole data in totals.
+     */
+    CheckpointTable index(ForkJoinPool pool, long[] totals) throws IOException {
+        List<ForkJoinTask<Part>> tasks = new ArrayList<ForkJoinTask<Part>>();
+        for (int p = 0; p < parts.length; ++p)
+            tasks.add(pool.submit(indexPart(p)));
+        CheckpointTable res = new CheckpointTable();
+        long out = 0;
+        long in = 0;
+        try {
+            for (int p = 0; p < parts.length; ++p) {
+                Part part = get(tasks.get(p));
+                long compressed = part.totals[ZRan.COMPRESSED_SIZE];
+                if (p + 1 < parts.length && compressed != parts[p + 1] - parts[p])
+                    throw new IOException("Member offsets don't match the data: members from " + parts[p] +
+                            " end at " + (parts[p] + compressed) + ", not " + parts[p + 1]);
+                res.append(part.table, out, parts[p]);
+                if (p == 0)
+                    totals[ZRan.MTIME] = part.totals[ZRan.MTIME];
+                out += part.totals[ZRan.DECOMPRESSED_SIZE];
+                in = parts[p] + compressed;
+            }
+        } finally {
+            for (ForkJoinTask<Part> task : tasks)
+                task.cancel(true);
+        }
+        totals[ZRan.DECOMPRESSED_SIZE] = out;
+        totals[ZRan.COMPRESSED_SIZE] = in;
+        return res;
+    }
+
+    private Callable<Part> indexPart(final int p) {
+        return new Callable<Part>() {
+            public Part call() throws IOException {
+                long end = (p + 1 < parts.length) ? parts[p + 1] : Long.MAX_VALUE;
+                long[] totals = new long[3];
+                CheckpointTable table = ZRan.build_index(
+                        new RangeInputStream(input, parts[p], end), span, Long.MAX_VALUE, totals, new NullProgressListener(), false);
+                return new Part(table, totals);
+            }
+        };
+    }
+
+    private static Part get(ForkJoinTask<Part> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new java.io.InterruptedIOException("Interrupted while indexing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static class Part {
+        private final CheckpointTable table;
+        private final long[] totals;
+
+        Part(CheckpointTable table, long[] totals) {
+            this.table = table;
+            this.totals = totals;
+        }
+    }
+}
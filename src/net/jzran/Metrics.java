@@ -0,0 +1,208 @@
+package net.jzran;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What reads from an index have done, for finding out why they are slow:
+ * how many seeks restored from an access point, how much data was
+ * inflated only to be discarded, how much compressed data was read, how
+ * many native inflate calls were made, and how long all that took. See
+ * {@link RandomAccessGZip.Index#setMetrics(Metrics)}; an index without
+ * metrics doesn't measure anything.
+ *
+ * Counters may be updated by many threads at once and read at any time.
+ */
+public class Metrics {
+    private final LongAdder seeks = new LongAdder();
+    private final LongAdder restores = new LongAdder();
+    private final LongAdder restoreNanos = new LongAdder();
+    private final LongAdder bytesInflated = new LongAdder();
+    private final LongAdder bytesDiscarded = new LongAdder();
+    private final LongAdder bytesDelivered = new LongAdder();
+    private final LongAdder compressedBytesRead = new LongAdder();
+    private final LongAdder compressedReadNanos = new LongAdder();
+    private final LongAdder inflateCalls = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+    private final Histogram seekLatency = new Histogram();
+    private final Histogram readLatency = new Histogram();
+
+    void seeked(boolean restored, long restoreTime, long discarded, long nanos) {
+        seeks.increment();
+        if (restored) {
+            restores.increment();
+            restoreNanos.add(restoreTime);
+        }
+        bytesDiscarded.add(discarded);
+        seekLatency.record(nanos);
+    }
+
+    void compressedRead(int bytes, long nanos) {
+        compressedBytesRead.add(bytes);
+        compressedReadNanos.add(nanos);
+    }
+
+    void inflated(int bytes, long nanos) {
+        inflateCalls.increment();
+        bytesInflated.add(bytes);
+        inflateNanos.add(nanos);
+    }
+
+    void delivered(long bytes, long nanos) {
+        bytesDelivered.add(bytes);
+        readLatency.record(nanos);
+    }
+
+    /**
+     * Seeks of an extractor to where it wasn't positioned already, which
+     * a seek of the index leads to on the next read.
+     */
+    public long seeks() {
+        return seeks.sum();
+    }
+
+    /**
+     * Seeks that restored the inflate state from an access point, rather
+     * than going on from where the extractor was.
+     */
+    public long restores() {
+        return restores.sum();
+    }
+
+    /**
+     * Time spent restoring from access points, without inflating.
+     */
+    public long restoreNanos() {
+        return restoreNanos.sum();
+    }
+
+    /**
+     * Decompressed bytes inflated, including those discarded.
+     */
+    public long bytesInflated() {
+        return bytesInflated.sum();
+    }
+
+    /**
+     * Decompressed bytes inflated by seeks only to get to where they were
+     * going.
+     */
+    public long bytesDiscarded() {
+        return bytesDiscarded.sum();
+    }
+
+    /**
+     * Decompressed bytes returned by reads.
+     */
+    public long bytesDelivered() {
+        return bytesDelivered.sum();
+    }
+
+    /**
+     * Compressed bytes read from the source, or handed to zlib in place
+     * if the source is mapped.
+     */
+    public long compressedBytesRead() {
+        return compressedBytesRead.sum();
+    }
+
+    /**
+     * Time spent reading compressed data.
+     */
+    public long compressedReadNanos() {
+        return compressedReadNanos.sum();
+    }
+
+    /**
+     * Calls of zlib's inflate.
+     */
+    public long inflateCalls() {
+        return inflateCalls.sum();
+    }
+
+    /**
+     * Time spent in calls of zlib's inflate, including the cost of calling
+     * native code.
+     */
+    public long inflateNanos() {
+        return inflateNanos.sum();
+    }
+
+    /**
+     * Latencies of the seeks counted by {@link #seeks()}, including
+     * restoring and discarding.
+     */
+    public Histogram seekLatency() {
+        return seekLatency;
+    }
+
+    /**
+     * Latencies of reads, including the seeks they did.
+     */
+    public Histogram readLatency() {
+        return readLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "seeks=" + seeks() + " restores=" + restores() + " restoreNanos=" + restoreNanos() +
+                " inflated=" + bytesInflated() + " discarded=" + bytesDiscarded() +
+                " delivered=" + bytesDelivered() + " compressedRead=" + compressedBytesRead() +
+                " compressedReadNanos=" + compressedReadNanos() + " inflateCalls=" + inflateCalls() +
+                " inflateNanos=" + inflateNanos() + " seekLatency=[" + seekLatency + "]" +
+                " readLatency=[" + readLatency + "]";
+    }
+
+    /**
+     * A histogram of latencies with a bucket per power of two nanoseconds.
+     */
+    public static class Histogram {
+        /* bucket 0 counts latencies of 0, bucket i those below 2^i ns
+           and at least 2^(i - 1) */
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        void record(long nanos) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+        }
+
+        /**
+         * Number of latencies recorded.
+         */
+        public long count() {
+            long res = 0;
+            for (int i = 0; i < buckets.length(); ++i)
+                res += buckets.get(i);
+            return res;
+        }
+
+        /**
+         * Number of latencies recorded that were below 2^i ns and at least
+         * 2^(i - 1) ns, or 0 for i = 0.
+         */
+        public long bucket(int i) {
+            return buckets.get(i);
+        }
+
+        /**
+         * A bound, within a factor of two, of the latency that the given
+         * fraction of those recorded didn't exceed, in ns.
+         */
+        public long percentile(double fraction) {
+            long total = count();
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); ++i) {
+                seen += buckets.get(i);
+                if (seen > 0 && seen >= rank)
+                    return (i == 0) ? 0 : (i == 63) ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count() + " p50<=" + percentile(0.5) + "ns p99<=" + percentile(0.99) +
+                    "ns max<=" + percentile(1) + "ns";
+        }
+    }
+}
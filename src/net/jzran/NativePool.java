@@ -0,0 +1,194 @@
+package net.jzran;
+
+import com.sun.jna.Memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Native buffers and inflate streams given back by extractors and window
+ * probes when they're closed, for the next ones to take, so that opening
+ * extractors, seeking and reading don't allocate either in steady state.
+ * What's given back beyond the limits is freed right away rather than left
+ * to finalizers. Safe for use by several threads.
+ *
+ * Buffer sizes are rounded up to powers of two; idle buffers of each size
+ * are kept in a stack linked through the buffers themselves.
+ */
+final class NativePool {
+    /* bytes of idle buffers kept by default; -Djzran.pool.bytes overrides it */
+    static final long DEFAULT_LIMIT = 64L << 20;
+
+    static final NativePool SHARED = new NativePool(Long.getLong("jzran.pool.bytes", DEFAULT_LIMIT),
+            4 * Runtime.getRuntime().availableProcessors());
+
+    private final long limit;
+    private final int maxStreams;
+    /* idle buffers by log2 of their size */
+    private final Buffer[] idle = new Buffer[31];
+    private long idleBytes;
+    private final InflateStream[] streams;
+    private int idleStreams;
+
+    /**
+     * A native buffer that can be freed when it's no longer used.
+     */
+    static final class Buffer extends Memory {
+        private Buffer next;
+        private ByteBuffer view;
+
+        private Buffer(long size) {
+            super(size);
+        }
+
+        /**
+         * A view of the whole buffer, made once; JNA registers every view
+         * it makes in a global map.
+         */
+        ByteBuffer view() {
+            if (view == null)
+                view = getByteBuffer(0, size);
+            return view;
+        }
+
+        /**
+         * The view, positioned at n bytes from offset on.
+         */
+        ByteBuffer slice(long offset, int n) {
+            ByteBuffer res = view();
+            res.limit((int) offset + n);
+            res.position((int) offset);
+            return res;
+        }
+
+        /**
+         * Put n bytes from offset on into dst, straight into its array if
+         * it has one.
+         */
+        void get(long offset, ByteBuffer dst, int n) {
+            if (dst.hasArray()) {
+                read(offset, dst.array(), dst.arrayOffset() + dst.position(), n);
+                dst.position(dst.position() + n);
+            } else {
+                dst.put(slice(offset, n));
+            }
+        }
+
+        /**
+         * Free the memory now; the buffer must not be used afterwards.
+         */
+        void free() {
+            Memory.free(peer);
+            peer = 0;
+            view = null;
+        }
+    }
+
+    /**
+     * @param limit bytes of idle buffers to keep.
+     * @param maxStreams idle inflate streams to keep.
+     */
+    NativePool(long limit, int maxStreams) {
+        this.limit = limit;
+        this.maxStreams = maxStreams;
+        this.streams = new InflateStream[maxStreams];
+    }
+
+    /**
+     * A buffer of at least the given size, which must be given back with
+     * {@link #give(Buffer)} or freed.
+     */
+    Buffer take(int size) {
+        int log = 32 - Integer.numberOfLeadingZeros(Math.max(size, 2) - 1);
+        synchronized (this) {
+            Buffer res = idle[log];
+            if (res != null) {
+                idle[log] = res.next;
+                res.next = null;
+                idleBytes -= res.getSize();
+                return res;
+            }
+        }
+        return new Buffer(1L << log);
+    }
+
+    /**
+     * Give back a buffer from {@link #take(int)}; null is ignored.
+     */
+    void give(Buffer buffer) {
+        if (buffer == null)
+            return;
+        synchronized (this) {
+            if (idleBytes + buffer.getSize() <= limit) {
+                int log = Long.numberOfTrailingZeros(buffer.getSize());
+                buffer.next = idle[log];
+                idle[log] = buffer;
+                idleBytes += buffer.getSize();
+                return;
+            }
+        }
+        buffer.free();
+    }
+
+    /**
+     * A stream initialized for raw inflate with the default backend, reset
+     * if it was used before. Give it back with {@link #give(InflateStream)}.
+     */
+    InflateStream stream() throws IOException {
+        synchronized (this) {
+            if (idleStreams > 0) {
+                InflateStream res = streams[--idleStreams];
+                streams[idleStreams] = null;
+                return res;
+            }
+        }
+        return InflateStream.raw();
+    }
+
+    /**
+     * Give back a stream from {@link #stream()}.
+     */
+    void give(InflateStream stream) {
+        if (stream.inflateReset() == ZLib.Z_OK) {
+            synchronized (this) {
+                if (idleStreams < maxStreams) {
+                    streams[idleStreams++] = stream;
+                    return;
+                }
+            }
+        }
+        stream.inflateEnd();
+    }
+
+    /**
+     * Free all that's idle.
+     */
+    void clear() {
+        Buffer[] buffers;
+        InflateStream[] ended;
+        int n;
+        synchronized (this) {
+            buffers = idle.clone();
+            Arrays.fill(idle, null);
+            idleBytes = 0;
+            ended = streams.clone();
+            n = idleStreams;
+            Arrays.fill(streams, null);
+            idleStreams = 0;
+        }
+        for (Buffer head : buffers) {
+            for (Buffer b = head; b != null; b = b.next)
+                b.free();
+        }
+        for (int i = 0; i < n; ++i)
+            ended[i].inflateEnd();
+    }
+
+    /**
+     * Bytes of idle buffers.
+     */
+    synchronized long idleBytes() {
+        return idleBytes;
+    }
+}
@@ -0,0 +1,357 @@
+package net.jzran;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decompresses all the data covered by an index using several threads:
+ * each access point lets inflating start in the middle, so the intervals
+ * between them are independent pieces of work.
+ */
+class ParallelInflater {
+    private static final long MIN_SEGMENT = 1L << 20;
+    private static final long MAX_SEGMENT = 64L << 20;
+    private static final int BUF_SIZE = RandomAccessGZip.Index.BUF_SIZE;
+    /* pieces kept for an in-order write, at least */
+    private static final long BUFFERED = 64L << 20;
+
+    private final SeekableInputStream inStream;
+    private final CheckpointTable index;
+    private final long length;
+    /* starts of the pieces of work, at access points, followed by length */
+    private final long[] segments;
+
+    ParallelInflater(SeekableInputStream inStream, CheckpointTable index, long length, int parallelism) {
+        this.inStream = inStream;
+        this.index = index;
+        this.length = length;
+        this.segments = segments(index, length, parallelism);
+    }
+
+    /* group intervals between access points into a few pieces per thread */
+    private static long[] segments(CheckpointTable index, long length, int parallelism) {
+        long target = Math.max(MIN_SEGMENT, Math.min(MAX_SEGMENT, length / (4L * parallelism)));
+        List<Long> starts = new ArrayList<Long>();
+        long last = -target;
+        for (int i = 0; i < index.size(); ++i) {
+            if (index.out(i) - last >= target && index.out(i) < length) {
+                starts.add(index.out(i));
+                last = index.out(i);
+            }
+        }
+        long[] res = new long[starts.size() + 1];
+        for (int i = 0; i < starts.size(); ++i)
+            res[i] = starts.get(i);
+        res[starts.size()] = length;
+        return res;
+    }
+
+    /**
+     * Write the data to a file channel with positional writes, starting
+     * at its current position; its position is then moved past the data.
+     */
+    void inflate(final FileChannel out, ForkJoinPool pool) throws IOException {
+        final long base = out.position();
+        run(pool, new Segments(0, segments.length - 1, new Work() {
+            public void inflate(int s) throws IOException {
+                ZRan.Extractor ex = new ZRan.Extractor(inStream);
+                try {
+                    long pos = segments[s];
+                    ex.seek(index, pos);
+                    NativePool.Buffer buf = ex.buffer(BUF_SIZE);
+                    while (pos < segments[s + 1]) {
+                        int n = ex.extract(buf, (int) Math.min(BUF_SIZE, segments[s + 1] - pos));
+                        ByteBuffer bb = buf.slice(0, n);
+                        while (bb.hasRemaining())
+                            out.write(bb, base + pos + bb.position());
+                        pos += n;
+                    }
+                } finally {
+                    ex.close();
+                }
+            }
+        }));
+        out.position(base + length);
+    }
+
+    /**
+     * Write the data to a channel in order. Up to twice as many segments
+     * as there are threads are inflated ahead, in pieces of BUF_SIZE
+     * bytes from the native pool; pieces not written yet take up to
+     * BUFFERED bytes, or two per thread if that's more, and two pieces
+     * over that at most.
+     */
+    void inflate(WritableByteChannel out, ForkJoinPool pool) throws IOException {
+        new Ordered(pool).write(out);
+    }
+
+    /**
+     * The state of an in-order write, guarded by its monitor. A producer
+     * inflates its segment a piece at a time while the budget allows, and
+     * otherwise parks until the writer has written enough to resume it,
+     * so pool threads never block on the budget.
+     */
+    private final class Ordered {
+        private final ForkJoinPool pool;
+        private final int ahead;
+        private final long budget;
+        private final Producer[] producers;
+        /* the segment being written, and the first not started */
+        private int writing;
+        private int next;
+        /* bytes of pieces taken and not written yet */
+        private long buffered;
+        private Exception failure;
+        private boolean cancelled;
+
+        Ordered(ForkJoinPool pool) {
+            this.pool = pool;
+            this.ahead = 2 * pool.getParallelism();
+            this.budget = Math.max(BUFFERED, (long) ahead * BUF_SIZE);
+            this.producers = new Producer[segments.length - 1];
+        }
+
+        void write(WritableByteChannel out) throws IOException {
+            try {
+                for (int s = 0; s < producers.length; ++s) {
+                    Producer p;
+                    synchronized (this) {
+                        writing = s;
+                        admit();
+                        p = producers[s];
+                        resume();
+                    }
+                    Piece piece;
+                    while ((piece = take(p)) != null) {
+                        try {
+                            ByteBuffer data = piece.buf.slice(0, piece.length);
+                            while (data.hasRemaining())
+                                out.write(data);
+                        } finally {
+                            NativePool.SHARED.give(piece.buf);
+                        }
+                        synchronized (this) {
+                            buffered -= BUF_SIZE;
+                            resume();
+                            admit();
+                        }
+                    }
+                    producers[s] = null;
+                }
+            } finally {
+                cancel();
+            }
+        }
+
+        /* the next piece of the segment being written, or null after its last */
+        private synchronized Piece take(Producer p) throws IOException {
+            while (p.pieces.isEmpty() && !p.done && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while decompressing");
+                }
+            }
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+            if (failure != null)
+                throw new RuntimeException(failure);
+            return p.pieces.pollFirst();
+        }
+
+        /* start producers for the segments being written and after it, as the budget allows */
+        private void admit() {
+            while (next < producers.length &&
+                    (next <= writing || (next - writing < ahead && buffered + BUF_SIZE <= budget))) {
+                producers[next] = new Producer(next);
+                pool.execute(producers[next++]);
+            }
+        }
+
+        /* resume parked producers, first to last, as the budget allows */
+        private void resume() {
+            for (int s = writing; s < next; ++s) {
+                Producer p = producers[s];
+                if (p.parked && mayTake(p)) {
+                    p.parked = false;
+                    pool.execute(p);
+                }
+            }
+        }
+
+        /*
+         * Whether a producer may inflate another piece: within the budget,
+         * or past it for the segment being written when the writer has
+         * nothing of it left, so that the writer always gets on.
+         */
+        private boolean mayTake(Producer p) {
+            return buffered + BUF_SIZE <= budget || (p.segment == writing && p.pieces.isEmpty());
+        }
+
+        private synchronized void fail(Exception e) {
+            if (failure == null)
+                failure = e;
+            notifyAll();
+        }
+
+        /* stop the producers and free what they hold; running ones free their own */
+        private synchronized void cancel() {
+            cancelled = true;
+            for (int s = writing; s < next; ++s) {
+                Producer p = producers[s];
+                if (p == null)
+                    continue;
+                for (Piece piece : p.pieces)
+                    NativePool.SHARED.give(piece.buf);
+                p.pieces.clear();
+                if (p.parked) {
+                    p.parked = false;
+                    if (p.ex != null)
+                        p.ex.close();
+                }
+            }
+        }
+
+        /**
+         * Inflates a segment into pieces, with one extractor from start to
+         * end across the times it's parked and resumed.
+         */
+        private final class Producer implements Runnable {
+            final int segment;
+            final ArrayDeque<Piece> pieces = new ArrayDeque<Piece>();
+            boolean done;
+            boolean parked;
+            ZRan.Extractor ex;
+            long pos;
+
+            Producer(int segment) {
+                this.segment = segment;
+                this.pos = segments[segment];
+            }
+
+            public void run() {
+                boolean park = false;
+                try {
+                    while (!done) {
+                        synchronized (Ordered.this) {
+                            if (cancelled)
+                                break;
+                            if (!mayTake(this)) {
+                                parked = park = true;
+                                return;
+                            }
+                            buffered += BUF_SIZE;
+                        }
+                        if (ex == null) {
+                            ex = new ZRan.Extractor(inStream);
+                            ex.seek(index, pos);
+                        }
+                        NativePool.Buffer buf = NativePool.SHARED.take(BUF_SIZE);
+                        int len = (int) Math.min(BUF_SIZE, segments[segment + 1] - pos);
+                        try {
+                            for (int filled = 0; filled < len; )
+                                filled += ex.extract(buf.share(filled), len - filled);
+                        } catch (IOException e) {
+                            NativePool.SHARED.give(buf);
+                            throw e;
+                        }
+                        synchronized (Ordered.this) {
+                            if (cancelled) {
+                                NativePool.SHARED.give(buf);
+                                break;
+                            }
+                            pos += len;
+                            done = (pos == segments[segment + 1]);
+                            pieces.addLast(new Piece(buf, len));
+                            Ordered.this.notifyAll();
+                        }
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    fail(e);
+                } finally {
+                    if (!park && ex != null)
+                        ex.close();
+                }
+            }
+        }
+    }
+
+    /* a piece of inflated data in a buffer from the native pool */
+    private static final class Piece {
+        final NativePool.Buffer buf;
+        final int length;
+
+        Piece(NativePool.Buffer buf, int length) {
+            this.buf = buf;
+            this.length = length;
+        }
+    }
+
+    private static void run(ForkJoinPool pool, Segments task) throws IOException {
+        try {
+            pool.invoke(task);
+        } catch (Failure f) {
+            throw f.cause;
+        }
+    }
+
+    /* what's done with each segment */
+    private interface Work {
+        void inflate(int s) throws IOException;
+    }
+
+    /**
+     * Does the work for segments [from, to), splitting the range in halves;
+     * there are none when the data is empty.
+     */
+    private static final class Segments extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final Work work;
+
+        Segments(int from, int to, Work work) {
+            this.from = from;
+            this.to = to;
+            this.work = work;
+        }
+
+        protected void compute() {
+            if (from >= to)
+                return;
+            if (to - from == 1) {
+                try {
+                    work.inflate(from);
+                } catch (IOException e) {
+                    throw new Failure(e);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Segments(from, mid, work), new Segments(mid, to, work));
+        }
+    }
+
+    /* carries an IOException out of a fork-join task */
+    private static class Failure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final IOException cause;
+
+        Failure(IOException cause) {
+            super(cause);
+            this.cause = cause;
+        }
+    }
+}
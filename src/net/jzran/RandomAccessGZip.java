@@ -1,10 +1,15 @@
 package net.jzran;
 
-import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.List;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The entry point. Use {@link #index(java.io.InputStream,
@@ -29,23 +34,58 @@ public class RandomAccessGZip {
         }
         // transitions: state -> state + 1
 
-        private static final int BUF_SIZE = 1048576;
+        static final int BUF_SIZE = 1048576;
+        /* checkpoint spacing for extend() when there's no spacing to go by */
+        static final long DEFAULT_SPAN = 1048576;
+        /* how much more a lazy index indexes at least when a read goes past it */
+        static final long LAZY_STEP = 1 << 22;
 
-        private List<ZRan.Point> idx;
-        private long decompressedSize;
-        private State state;
+        private transient volatile CheckpointTable idx;
+        private transient volatile long decompressedSize;
+        private transient volatile long sourceLength;
+        private transient volatile long sourceMtime;
+        /* where the scan that built the index stopped, or null if that was
+           inside a deflate block */
+        private transient volatile ResumePoint end;
+        private transient volatile State state;
+
+        /* a lazy index that doesn't cover all of the data yet */
+        private transient volatile boolean lazy;
+        private transient long lazySpan;
+        /* held while a lazy index is being extended */
+        private transient Object frontier = new Object();
+        private transient Thread builder;
+        private transient volatile IOException builderFailure;
 
-        private transient Memory mem;
-        private transient ByteBuffer memBuf;
         private transient SeekableInputStream inStream;
         private transient ZRan.Extractor extractor;
         private transient long pos;
+        /* kept for read() and read(byte[], int, int), so that reading
+           through the stream allocates nothing */
+        private transient ByteBuffer single;
+        private transient ByteBuffer wrapped;
+        private transient volatile ChunkCache cache;
+        private transient volatile Object cacheKey;
+        private transient ExtractorPool pool;
+        private transient int maxExtractors = Runtime.getRuntime().availableProcessors();
+        private transient volatile AdaptiveCheckpoints adaptive;
+        private transient volatile Metrics metrics;
+
+        /**
+         * An index of gzip data that ends at the end of a gzip member.
+         */
+        Index(CheckpointTable idx, long decompressedSize, long sourceLength, long sourceMtime) {
+            this(idx, decompressedSize, sourceLength, sourceMtime,
+                    ResumePoint.memberStart(decompressedSize, sourceLength));
+        }
 
-        private Index(List<ZRan.Point> idx, long decompressedSize) {
+        Index(CheckpointTable idx, long decompressedSize, long sourceLength, long sourceMtime, ResumePoint end) {
             this.idx = idx;
             this.decompressedSize = decompressedSize;
-            this.mem = new Memory(BUF_SIZE);
-            this.memBuf = mem.getByteBuffer(0, BUF_SIZE);
+            this.sourceLength = sourceLength;
+            this.sourceMtime = sourceMtime;
+            this.end = end;
+            this.state = State.VOID;
         }
 
         /**
@@ -81,15 +121,18 @@ public class RandomAccessGZip {
             if(state == State.CLOSED)
                 throw new IllegalStateException("Stream closed");
 
+            // the extractor catches up lazily, on the first read that
+            // isn't served from the chunk cache
             this.pos = offset;
-            this.extractor = new ZRan.Extractor(inStream, idx, offset);
             state = State.OPEN;
         }
 
         @Override
         public int read() throws IOException {
-            byte[] b = new byte[1];
-            return read(b)>0 ? b[0] : -1;
+            if(single == null)
+                single = ByteBuffer.allocate(1);
+            single.clear();
+            return read(single)>0 ? single.get(0) & 0xff : -1;
         }
 
         @Override
@@ -100,38 +143,659 @@ public class RandomAccessGZip {
         @Override
         public long skip(long n) throws IOException {
             ensureOpen();
-            long toSkip = Math.min(n, available());
+            if(n > 0)
+                cover((n > Long.MAX_VALUE - pos) ? Long.MAX_VALUE - 1 : pos + n - 1);
+            long toSkip = Math.min(n, Math.max(0, decompressedSize - pos));
             seek(pos + toSkip);
             return toSkip;
         }
 
+        /**
+         * The bytes left up to the end of the data, at most
+         * Integer.MAX_VALUE; for a lazy index that isn't complete yet, up
+         * to the end of the data indexed so far, and 0 past that.
+         */
         @Override
         public int available() throws IOException {
             ensureOpen();
-            return (int) Math.min(Integer.MAX_VALUE, length() - pos);
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, decompressedSize - pos));
         }
 
+        /**
+         * Close the stream; this waits for the step of indexing that
+         * {@link #buildInBackground()} may be doing to finish, so that
+         * nothing reads the compressed data once this returns.
+         */
         @Override
         public void close() throws IOException {
-            if(state != State.OPEN)
+            if(state != State.OPEN && state != State.SEMI_OPEN)
                 throw new IllegalStateException("Can only close an open stream");
-            extractor.close();
-            state = State.CLOSED;
+            if(extractor != null)
+                extractor.close();
+            wrapped = null;
+            Thread b;
+            synchronized(this) {
+                if(pool != null)
+                    pool.close();
+                state = State.CLOSED;
+                b = builder;
+            }
+            if(b != null) {
+                try {
+                    b.join();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the index builder");
+                }
+            }
         }
 
         public int read(byte[] buf, int offset, int len) throws IOException {
             ensureOpen();
-            int n = extractor.extract(mem, Math.min(len, BUF_SIZE));
-            memBuf.position(0);
-            memBuf.get(buf, offset, n);
+            if(len == 0)
+                return 0;
+            cover(pos);
+            if(pos >= decompressedSize)
+                return -1;
+            if(wrapped == null || wrapped.array() != buf)
+                wrapped = ByteBuffer.wrap(buf);
+            wrapped.limit(offset + len);
+            wrapped.position(offset);
+            int n = readAt(pos, wrapped, false);
             pos += n;
             return n;
         }
 
+        /**
+         * Read up to dst.remaining() bytes at the current position into dst.
+         * A direct buffer is inflated into without copying, unless the data
+         * is served from a chunk cache.
+         *
+         * @return the number of bytes read, or -1 at the end of the data.
+         */
+        public int read(ByteBuffer dst) throws IOException {
+            ensureOpen();
+            if(!dst.hasRemaining())
+                return 0;
+            cover(pos);
+            if(pos >= decompressedSize)
+                return -1;
+            int n = readAt(pos, dst, false);
+            pos += n;
+            return n;
+        }
+
+        /**
+         * Read up to len bytes of decompressed data at the given position,
+         * without moving the position of this stream. Unlike the other
+         * methods, this one may be called from many threads at once: each
+         * call borrows an extractor from a pool, preferring one that a
+         * previous call left just before the position.
+         *
+         * @return the number of bytes read, or -1 if the position is at
+         *   the end of the data.
+         */
+        @Override
+        public int read(long position, byte[] buf, int offset, int len) throws IOException {
+            checkPositional(position);
+            if(len == 0)
+                return 0;
+            cover(position);
+            if(position >= decompressedSize)
+                return -1;
+            return readAt(position, ByteBuffer.wrap(buf, offset, len), true);
+        }
+
+        /**
+         * Like {@link #read(long, byte[], int, int)}, into dst; a direct
+         * buffer is inflated into without copying.
+         */
+        @Override
+        public int read(long position, ByteBuffer dst) throws IOException {
+            checkPositional(position);
+            if(!dst.hasRemaining())
+                return 0;
+            cover(position);
+            if(position >= decompressedSize)
+                return -1;
+            return readAt(position, dst, true);
+        }
+
+        /**
+         * Write len bytes of decompressed data starting at the given offset
+         * to a channel, for example a socket serving a byte range. The data
+         * goes from zlib's output buffer in native memory straight to the
+         * channel. Thread-safe like the positional reads, and doesn't move
+         * the position of this stream.
+         *
+         * @return the number of bytes written: less than len only if the
+         *   data ends first.
+         */
+        public long transferTo(long offset, long len, WritableByteChannel target) throws IOException {
+            checkPositional(offset);
+            if(len > 0)
+                cover((len > Long.MAX_VALUE - offset) ? Long.MAX_VALUE - 1 : offset + len - 1);
+            len = Math.max(0, Math.min(len, decompressedSize - offset));
+            if(len == 0)
+                return 0;
+            Metrics m = metrics;
+            long start = (m != null) ? System.nanoTime() : 0;
+            ExtractorPool p = pool();
+            CheckpointTable t = idx;
+            ZRan.Extractor ex = p.acquire(t, offset);
+            boolean ok = false;
+            try {
+                if(ex.position() != offset)
+                    ex.seek(t, offset, adaptive);
+                NativePool.Buffer out = ex.buffer((int) Math.min(len, BUF_SIZE));
+                for(long done = 0; done < len; ) {
+                    int n = ex.extract(out, (int) Math.min(out.getSize(), len - done));
+                    ByteBuffer data = out.slice(0, n);
+                    while(data.hasRemaining())
+                        target.write(data);
+                    done += n;
+                }
+                ok = true;
+                if(m != null)
+                    m.delivered(len, System.nanoTime() - start);
+                return len;
+            } finally {
+                if(ok)
+                    p.release(ex);
+                else
+                    p.discard(ex);
+            }
+        }
+
+        /**
+         * Read a batch of ranges of decompressed data: up to
+         * destinations[i].remaining() bytes at offsets[i] into each
+         * destinations[i], moving its position past them. Less is read
+         * only where the data ends.
+         *
+         * Ranges are sorted, overlapping ones are inflated once, and those
+         * in the same interval between checkpoints are read in a single
+         * forward pass, so that many small ranges cost about as much as
+         * inflating the intervals they're in once. Thread-safe like the
+         * positional reads, and doesn't move the position of this stream.
+         * The destinations must be distinct buffers.
+         *
+         * @param pool if not null, runs of ranges that are far apart are
+         *   read in parallel on it, each by an extractor of the pool used
+         *   by positional reads.
+         */
+        public void readRanges(long[] offsets, ByteBuffer[] destinations, ForkJoinPool pool) throws IOException {
+            checkPositional(0);
+            long last = 0;
+            for(int i = 0; i < offsets.length && i < destinations.length; ++i)
+                last = Math.max(last, offsets[i] + destinations[i].remaining());
+            if(last > 0)
+                cover(last - 1);
+            ExtractorPool extractors = pool();
+            Metrics m = metrics;
+            long start = (m != null) ? System.nanoTime() : 0;
+            long before = (m != null) ? positions(destinations) : 0;
+            new RangeReader(idx, decompressedSize, offsets, destinations).read(extractors, pool);
+            if(m != null)
+                m.delivered(positions(destinations) - before, System.nanoTime() - start);
+        }
+
+        private static long positions(ByteBuffer[] buffers) {
+            long res = 0;
+            for(ByteBuffer b : buffers)
+                res += b.position();
+            return res;
+        }
+
+        /**
+         * Read a batch of ranges on the calling thread.
+         *
+         * @see #readRanges(long[], ByteBuffer[], ForkJoinPool)
+         */
+        public void readRanges(long[] offsets, ByteBuffer[] destinations) throws IOException {
+            readRanges(offsets, destinations, null);
+        }
+
+        private void checkPositional(long position) {
+            if(state == State.VOID)
+                throw new IllegalStateException("Call open() before reading");
+            if(state == State.CLOSED)
+                throw new IllegalStateException("Stream closed");
+            if(position < 0)
+                throw new IllegalArgumentException("Negative position: " + position);
+        }
+
+        /**
+         * Set the size of the pool of extractors used by positional reads;
+         * each one takes some 300kb of native memory. The default is the
+         * number of processors. Can only be called before the first
+         * positional read.
+         */
+        public synchronized void setMaxExtractors(int max) {
+            if(max <= 0)
+                throw new IllegalArgumentException("Pool size must be positive: " + max);
+            if(pool != null)
+                throw new IllegalStateException("Positional reads have already started");
+            this.maxExtractors = max;
+        }
+
+        private synchronized ExtractorPool pool() {
+            if(pool == null) {
+                pool = new ExtractorPool(inStream, maxExtractors);
+                pool.metrics = metrics;
+            }
+            return pool;
+        }
+
+        private int readAt(long position, ByteBuffer dst, boolean pooled) throws IOException {
+            Metrics m = metrics;
+            if(m == null)
+                return readUncounted(position, dst, pooled);
+            long start = System.nanoTime();
+            int n = readUncounted(position, dst, pooled);
+            m.delivered(n, System.nanoTime() - start);
+            return n;
+        }
+
+        private int readUncounted(long position, ByteBuffer dst, boolean pooled) throws IOException {
+            ChunkCache c = cache;
+            Object key = cacheKey;
+            if(c != null) {
+                int n = c.read(key, position / c.chunkSize(), (int) (position % c.chunkSize()), dst);
+                if(n >= 0)
+                    return n;
+            }
+
+            CheckpointTable t = idx;
+            ExtractorPool p = pooled ? pool() : null;
+            ZRan.Extractor ex;
+            if(pooled) {
+                ex = p.acquire(t, position);
+            } else {
+                if(extractor == null)
+                    extractor = new ZRan.Extractor(inStream);
+                ex = extractor;
+                ex.metrics = metrics;
+            }
+            boolean ok = false;
+            try {
+                int n = (c == null)
+                        ? extract(ex, t, position, dst)
+                        : extractChunk(ex, t, c, key, position, dst);
+                ok = true;
+                return n;
+            } finally {
+                if(pooled) {
+                    if(ok)
+                        p.release(ex);
+                    else
+                        p.discard(ex);
+                }
+            }
+        }
+
+        private int extract(ZRan.Extractor ex, CheckpointTable t, long position, ByteBuffer dst) throws IOException {
+            if(ex.position() != position)
+                ex.seek(t, position, adaptive);
+            int len = (int) Math.min(Math.min(dst.remaining(), BUF_SIZE), decompressedSize - position);
+            int n;
+            if(dst.isDirect()) {
+                Pointer out = Native.getDirectBufferPointer(dst).share(dst.position());
+                do {
+                    n = ex.extract(out, len);
+                } while(n == 0);
+                dst.position(dst.position() + n);
+            } else {
+                NativePool.Buffer out = ex.buffer(len);
+                do {
+                    n = ex.extract(out, len);
+                } while(n == 0);
+                out.get(0, dst, n);
+            }
+            return n;
+        }
+
+        /* inflate the whole chunk around position into the cache */
+        private int extractChunk(ZRan.Extractor ex, CheckpointTable t, ChunkCache c, Object key,
+                                 long position, ByteBuffer dst) throws IOException {
+            int chunkSize = c.chunkSize();
+            long chunk = position / chunkSize;
+            long start = chunk * chunkSize;
+            int chunkLen = (int) Math.min(chunkSize, decompressedSize - start);
+            if(ex.position() != start)
+                ex.seek(t, start, adaptive);
+            NativePool.Buffer out = ex.buffer(chunkLen);
+            for(int filled = 0; filled < chunkLen; ) {
+                filled += ex.extract(out.share(filled), chunkLen - filled);
+            }
+            c.put(key, chunk, out, chunkLen);
+            int n = Math.min(dst.remaining(), chunkLen - (int) (position - start));
+            out.get(position - start, dst, n);
+            return n;
+        }
+
+        /**
+         * Decompress all the data to a channel using several threads: the
+         * intervals between access points are inflated independently, each
+         * by its own extractor. A {@link FileChannel} gets positional writes
+         * from its current position on; other channels get the data in
+         * order, with up to 64mb of it (2mb per thread if that's more)
+         * buffered ahead in native memory from a pool.
+         *
+         * This doesn't use or move the position of this stream.
+         */
+        public void decompress(WritableByteChannel out, ForkJoinPool pool) throws IOException {
+            if(state == State.VOID)
+                throw new IllegalStateException("Call open() before reading");
+            if(state == State.CLOSED)
+                throw new IllegalStateException("Stream closed");
+            ensureComplete();
+            ParallelInflater inflater = new ParallelInflater(inStream, idx, decompressedSize, pool.getParallelism());
+            if(out instanceof FileChannel)
+                inflater.inflate((FileChannel) out, pool);
+            else
+                inflater.inflate(out, pool);
+        }
+
+        /**
+         * Decompress all the data to a channel, with a thread per processor.
+         */
+        public void decompress(WritableByteChannel out) throws IOException {
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                decompress(out, pool);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        /**
+         * Decompress all the data into a file, replacing its contents,
+         * with a thread per processor.
+         */
+        public void decompressTo(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                decompress(raf.getChannel());
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * All the decompressed data as a stream of chunks of at most the
+         * given size (at most 1mb), for scanning it when order doesn't
+         * matter: the stream splits at access points, and with
+         * {@link Stream#parallel()} each worker inflates its own intervals
+         * with its own extractor. A chunk never spans an access point.
+         *
+         * Chunks and their buffers are reused, see {@link DecompressedChunk}.
+         * I/O errors are thrown as {@link java.io.UncheckedIOException}.
+         * Close the stream if it may not be consumed to the end, to free
+         * the extractors of unfinished splits.
+         */
+        public Stream<DecompressedChunk> chunks(int chunkSize) {
+            if(state == State.VOID)
+                throw new IllegalStateException("Call open() before reading");
+            if(state == State.CLOSED)
+                throw new IllegalStateException("Stream closed");
+            if(chunkSize <= 0 || chunkSize > BUF_SIZE)
+                throw new IllegalArgumentException("Chunk size must be in 1.." + BUF_SIZE + ": " + chunkSize);
+            try {
+                ensureComplete();
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ChunkSpliterator.Extractors extractors = new ChunkSpliterator.Extractors();
+            return StreamSupport.stream(
+                    new ChunkSpliterator(inStream, idx, decompressedSize, chunkSize, extractors), false)
+                    .onClose(extractors);
+        }
+
+        /**
+         * Serve reads through a cache of decompressed data, which may be
+         * shared with other indexes. Seeks and reads only touch zlib when
+         * the data isn't cached.
+         *
+         * @param cache the cache, or null to stop caching.
+         * @param source identifies the gzip data for the cache, for example
+         *   its file name: indexes over the same data may use the same
+         *   source and share cached chunks, indexes over different data
+         *   must not.
+         */
+        public void setChunkCache(ChunkCache cache, Object source) {
+            if(cache != null && source == null)
+                throw new IllegalArgumentException("A cached index needs a source");
+            this.cache = cache;
+            this.cacheKey = source;
+        }
+
+        /**
+         * Length of the decompressed data; for a lazy index that isn't
+         * complete yet, of the data indexed so far.
+         */
         public long length() {
             return decompressedSize;
         }
 
+        /**
+         * For an index from {@link RandomAccessGZip#lazyIndex}, index all
+         * of the data now, unless it's done already; for other indexes,
+         * nothing.
+         */
+        public void ensureComplete() throws IOException {
+            cover(Long.MAX_VALUE - 1);
+        }
+
+        /**
+         * Length of the gzip data this index was built from.
+         */
+        public long sourceLength() {
+            return sourceLength;
+        }
+
+        /**
+         * The MTIME field of the gzip header of the data this index
+         * was built from (seconds since the epoch, 0 if not set).
+         */
+        public long sourceMtime() {
+            return sourceMtime;
+        }
+
+        /**
+         * Windows of access points are kept compressed and inflated
+         * when a seek restores from them; this sets how many recently
+         * used ones (32kb each) are also kept inflated. 0 disables this,
+         * the default is 4.
+         */
+        public void setWindowCacheSize(int windows) {
+            if(windows < 0)
+                throw new IllegalArgumentException("Negative window cache size: " + windows);
+            idx.setWindowCacheSize(windows);
+        }
+
+        /**
+         * Let reads add access points to the index where seeks keep
+         * inflating a lot of data only to skip it, up to the given number
+         * of bytes of memory for them; they are captured at deflate block
+         * boundaries as the data goes by, without rereading anything.
+         * 0 disables this, which is the default. The access points added
+         * are kept by {@link RandomAccessGZip#writeIndex}.
+         *
+         * @throws IllegalStateException if the index is mapped with
+         *   {@link RandomAccessGZip#mapIndex}, which is read-only.
+         */
+        public void setAdaptiveBudget(long bytes) {
+            if(bytes < 0)
+                throw new IllegalArgumentException("Negative budget: " + bytes);
+            if(bytes > 0 && !idx.windows().writable())
+                throw new IllegalStateException("A mapped index can't have access points added");
+            this.adaptive = (bytes == 0) ? null : new AdaptiveCheckpoints(this, bytes);
+        }
+
+        /**
+         * Count what reads do in the given metrics, or stop counting if
+         * null, which is the default. Seeks and index builds are also
+         * recorded as flight recorder events (net.jzran.Seek and
+         * net.jzran.IndexBuild) whenever a recording enables them, with or
+         * without metrics.
+         */
+        public synchronized void setMetrics(Metrics metrics) {
+            this.metrics = metrics;
+            if(pool != null)
+                pool.metrics = metrics;
+        }
+
+        /**
+         * The metrics reads are counted in, or null.
+         */
+        public Metrics metrics() {
+            return metrics;
+        }
+
+        /**
+         * Add an access point, unless there's one at the same offset.
+         * Calls must not overlap.
+         */
+        synchronized boolean addCheckpoint(long out, long in, int bits, byte[] window, int windowLength) {
+            CheckpointTable t = idx;
+            if(t.out(t.find(out)) == out)
+                return false;
+            idx = t.with(out, in, bits, window, windowLength);
+            return true;
+        }
+
+        /**
+         * An index of the same gzip data after more has been appended to it,
+         * as happens to logs written as gzip. Scanning carries on from where
+         * the scan that built this index stopped, so this takes time in
+         * proportion to the new data. The data may end anywhere, even inside
+         * a gzip member still being written; the index covers what's there,
+         * and can be extended in turn. New checkpoints are spaced like the
+         * existing ones on average. This index is left as it is; the new
+         * one needs to be opened.
+         */
+        public Index extend(SeekableInputStream input) throws IOException {
+            CheckpointTable t = idx;
+            long span = (t.size() > 1) ? t.out(t.size() - 1) / (t.size() - 1) : DEFAULT_SPAN;
+            return extend(input, Math.max(span, 1));
+        }
+
+        /**
+         * Like {@link #extend(SeekableInputStream)}, with checkpoints every
+         * span bytes of new decompressed data.
+         */
+        public Index extend(SeekableInputStream input, long span) throws IOException {
+            CheckpointTable t = idx;
+            if(!t.windows().writable()) {
+                CheckpointTable copy = new CheckpointTable();
+                copy.append(t, 0, 0);
+                t = copy;
+            }
+            Index res = new Index(t, decompressedSize, sourceLength, sourceMtime, end);
+            res.scan(input, span, Long.MAX_VALUE);
+            return res;
+        }
+
+        /*
+         * Index the data from where this index stops up to the first block
+         * boundary after until bytes of decompressed data, or to its end.
+         *
+         * @return whether that got to the end of the data.
+         */
+        private boolean scan(SeekableInputStream input, long span, long until) throws IOException {
+            CheckpointTable t = idx;
+            ResumePoint from = end;
+            if(from == null) {
+                // the scan stopped inside a deflate block: go on from the last checkpoint instead
+                from = ResumePoint.at(t, t.size() - 1, input);
+            }
+            long[] totals = new long[3];
+            ResumePoint[] resume = {from};
+            CheckpointTable part = ZRan.build_index(new RangeInputStream(input, from.in, Long.MAX_VALUE),
+                    span, Long.MAX_VALUE, until - from.out, totals, new NullProgressListener(), false, resume);
+            if(totals[ZRan.COMPRESSED_SIZE] == 0)
+                return true;
+
+            synchronized(this) {
+                t = idx;
+                int keep = t.size();
+                while(keep > 0 && t.out(keep - 1) >= from.out)
+                    keep--;
+                idx = t.with(keep, part, from.out, from.in);
+                if(from.out == 0 && from.in == 0)
+                    sourceMtime = totals[ZRan.MTIME];
+                sourceLength = from.in + totals[ZRan.COMPRESSED_SIZE];
+                end = (resume[0] == null) ? null : resume[0].shift(from.out, from.in);
+                decompressedSize = from.out + totals[ZRan.DECOMPRESSED_SIZE];
+            }
+            return resume[0] == null || resume[0].out < until - from.out;
+        }
+
+        /*
+         * For a lazy index, index the data as far as position, if it goes
+         * that far; at least LAZY_STEP bytes past what's indexed already.
+         */
+        private void cover(long position) throws IOException {
+            if(!lazy || position < decompressedSize)
+                return;
+            synchronized(frontier) {
+                while(lazy && position >= decompressedSize && state != State.CLOSED) {
+                    if(builderFailure != null)
+                        throw new IOException("Building the index failed", builderFailure);
+                    long until = Math.max(position + 1, decompressedSize + LAZY_STEP);
+                    if(scan(inStream, lazySpan, until))
+                        lazy = false;
+                }
+            }
+        }
+
+        /**
+         * For an index from {@link RandomAccessGZip#lazyIndex}, go on
+         * indexing the rest of the data on a thread of its own, a step at a
+         * time, so that reads past what's indexed seldom have to wait.
+         * The thread stops when the index is complete or closed.
+         */
+        public synchronized void buildInBackground() {
+            if(!lazy || builder != null)
+                return;
+            builder = new Thread("jzran index builder") {
+                public void run() {
+                    try {
+                        while(lazy && state != Index.State.CLOSED)
+                            cover(decompressedSize);
+                    } catch(IOException e) {
+                        builderFailure = e;
+                    }
+                }
+            };
+            builder.setDaemon(true);
+            builder.start();
+        }
+
+        /**
+         * Whether the index covers all of the data yet; only a lazy index
+         * doesn't until it's read to the end, {@link #ensureComplete()} is
+         * called, or {@link #buildInBackground()} is done.
+         */
+        public boolean isComplete() {
+            return !lazy;
+        }
+
+        /* the length of the data indexed so far */
+        long frontier() {
+            return decompressedSize;
+        }
+
+        ResumePoint resumePoint() {
+            return end;
+        }
+
+        CheckpointTable table() {
+            return idx;
+        }
+
         private void ensureOpen() {
             if(state != State.OPEN)
                 throw new IllegalStateException("Stream must be open");
@@ -139,12 +803,19 @@ public class RandomAccessGZip {
 
         private void writeObject(ObjectOutputStream oos) throws IOException {
             oos.defaultWriteObject();
+            IndexFormat.write(this, oos);
         }
 
         private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
             ois.defaultReadObject();
-            this.mem = new Memory(BUF_SIZE);
-            this.memBuf = mem.getByteBuffer(0, BUF_SIZE);
+            Index read = IndexFormat.read(ois);
+            this.idx = read.idx;
+            this.decompressedSize = read.decompressedSize;
+            this.sourceLength = read.sourceLength;
+            this.sourceMtime = read.sourceMtime;
+            this.end = read.end;
+            this.frontier = new Object();
+            this.maxExtractors = Runtime.getRuntime().availableProcessors();
             this.state = State.VOID;
         }
     }
@@ -152,26 +823,232 @@ public class RandomAccessGZip {
     /**
      * Use this method to create an index and monitor progress :)
      *
+     * BGZF data (as written by bgzip) is recognized by its first block
+     * header and indexed without inflating, with a checkpoint at each block
+     * and no windows; span doesn't matter then.
+     *
      * @param span A "checkpoint" will take place every span bytes of
-     *   decompressed data. A checkpoint takes about 32kb.
+     *   decompressed data. A checkpoint takes up to 32kb, usually much
+     *   less because its window is kept compressed.
      * @param listener It will be frequently notified of how many bytes of
      *   compressed input have been read so far.
      * @return an index, or null if progress listener returns false
      *   along the way ("cancel").
      */
     public static Index index(InputStream input, long span, ProgressListener<Long> listener) throws IOException {
-        long[] holder = {0L};
-        List<ZRan.Point> idx = ZRan.build_index(input, span, holder, listener);
-        return idx == null ? null : new Index(idx, holder[0]);
+        return index(input, span, listener, false);
+    }
+
+    /**
+     * Create an index, optionally pipelined: then a thread reads the input
+     * into a ring of native buffers ahead of inflating, and another one
+     * stores the windows of checkpoints, so that indexing slow storage
+     * takes about as long as the slower of reading and inflating rather
+     * than both.
+     *
+     * @see #index(java.io.InputStream, long, ProgressListener)
+     */
+    public static Index index(InputStream input, long span, ProgressListener<Long> listener, boolean pipelined)
+            throws IOException {
+        return index(input, span, Long.MAX_VALUE, listener, pipelined);
+    }
+
+    /**
+     * Create an index with checkpoints spaced by both decompressed and
+     * compressed bytes: a checkpoint takes place at the first block boundary
+     * after span bytes of decompressed data or compressedSpan bytes of
+     * compressed data, whichever comes first. A seek then inflates and
+     * discards at most about span bytes, and reads at most about
+     * compressedSpan bytes of input before getting there.
+     *
+     * @see #index(java.io.InputStream, long, ProgressListener, boolean)
+     */
+    public static Index index(InputStream input, long span, long compressedSpan,
+                              ProgressListener<Long> listener, boolean pipelined) throws IOException {
+        long[] totals = new long[3];
+        PushbackInputStream in = new PushbackInputStream(input, 512);
+        byte[] head = new byte[512];
+        int len = 0;
+        while(len < head.length) {
+            int nr = in.read(head, len, head.length - len);
+            if(nr == -1)
+                break;
+            len += nr;
+        }
+        in.unread(head, 0, len);
+        CheckpointTable idx = (Bgzf.blockSize(head, len) > 0)
+                ? Bgzf.index(in, totals, listener)
+                : ZRan.build_index(in, span, compressedSpan, totals, listener, pipelined);
+        return idx == null ? null : new Index(idx,
+                totals[ZRan.DECOMPRESSED_SIZE], totals[ZRan.COMPRESSED_SIZE], totals[ZRan.MTIME]);
+    }
+
+    /**
+     * Index gzip data made of several members (as written by concatenating
+     * gzip files, or by tools that compress blocks independently) whose
+     * offsets are known in advance, indexing runs of members in parallel.
+     *
+     * @param members offsets of the members in the compressed data, in
+     *   increasing order, starting with 0. It's fine to leave some out: then
+     *   the runs of members are longer.
+     * @param span as in {@link #index(java.io.InputStream, long, ProgressListener)},
+     *   within each run of members.
+     */
+    public static Index index(SeekableInputStream input, long[] members, long span, ForkJoinPool pool)
+            throws IOException {
+        long[] totals = new long[3];
+        CheckpointTable idx = new MemberIndexer(input, members, span, pool.getParallelism()).index(pool, totals);
+        return new Index(idx, totals[ZRan.DECOMPRESSED_SIZE], totals[ZRan.COMPRESSED_SIZE], totals[ZRan.MTIME]);
+    }
+
+    /**
+     * Index multi-member gzip data in parallel, with a thread per processor.
+     *
+     * @see #index(SeekableInputStream, long[], long, java.util.concurrent.ForkJoinPool)
+     */
+    public static Index index(SeekableInputStream input, long[] members, long span) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return index(input, members, span, pool);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Create an index whose checkpoints take at most maxBytes of memory,
+     * as dense as that allows. Checkpoints are taken by compressed bytes,
+     * guessing from the length of the input how many will fit, and then
+     * thinned down to the budget like {@link #thin(Index, long)} does.
+     *
+     * @return an index, or null if progress listener returns false
+     *   along the way ("cancel").
+     * @throws IllegalArgumentException if maxBytes isn't enough for even
+     *   one checkpoint.
+     */
+    public static Index indexWithin(SeekableInputStream input, long maxBytes, ProgressListener<Long> listener)
+            throws IOException {
+        /* a window usually compresses to well under 8kb; guessing small
+           gives more checkpoints to choose from when thinning */
+        long points = Math.max(1, maxBytes / (CheckpointTable.WINSIZE / 4 + CheckpointTable.POINT_OVERHEAD));
+        long compressedSpan = Math.max(CheckpointTable.WINSIZE, input.length() / points);
+        Index index = index(input, Long.MAX_VALUE, compressedSpan, listener, false);
+        return (index == null) ? null : thin(index, maxBytes);
+    }
+
+    /**
+     * An index with those checkpoints of the given one that fit in maxBytes
+     * of memory, chosen to keep the longest run of data a seek has to
+     * inflate and discard short. Doesn't read the gzip data: the windows
+     * kept are copied as they are. The new index needs to be opened.
+     *
+     * @throws IllegalArgumentException if maxBytes isn't enough for even
+     *   one checkpoint.
+     */
+    public static Index thin(Index index, long maxBytes) throws IOException {
+        CheckpointTable table = index.table().thin(index.length(), maxBytes);
+        return new Index(table, index.length(), index.sourceLength(), index.sourceMtime(), index.resumePoint());
+    }
+
+    /**
+     * Index gzip data that may still be being written: it may end anywhere,
+     * even inside a gzip member, and the index covers the data up to there.
+     * Use {@link Index#extend} to index what's written later.
+     *
+     * @throws EOFException if there isn't even a whole gzip header yet.
+     */
+    public static Index indexGrowing(InputStream input, long span) throws IOException {
+        long[] totals = new long[3];
+        ResumePoint[] resume = new ResumePoint[1];
+        CheckpointTable idx = ZRan.build_index(
+                input, span, Long.MAX_VALUE, Long.MAX_VALUE, totals, new NullProgressListener(), false, resume);
+        if(idx.size() == 0)
+            throw new EOFException("No gzip data to index yet");
+        return new Index(idx, totals[ZRan.DECOMPRESSED_SIZE], totals[ZRan.COMPRESSED_SIZE], totals[ZRan.MTIME],
+                resume[0]);
+    }
+
+    /**
+     * An index that builds itself as it's used, instead of upfront: it's
+     * open over the given data right away, and indexes it, with checkpoints
+     * every span bytes, as far as reads go. The first read past what's
+     * indexed inflates the data up to there once; later reads there are
+     * as fast as with a complete index. {@link Index#buildInBackground()}
+     * indexes the rest ahead of reads, {@link Index#ensureComplete()} all of
+     * it at once; until then {@link Index#length()} is that of the data
+     * indexed so far.
+     *
+     * The index may be written with {@link #writeIndex} at any time; it's
+     * read back as an index of the data indexed so far, to be extended
+     * with {@link Index#extend}.
+     */
+    public static Index lazyIndex(SeekableInputStream input, long span) throws IOException {
+        Index index = new Index(new CheckpointTable(), 0, 0, 0, ResumePoint.memberStart(0, 0));
+        index.lazy = true;
+        index.lazySpan = span;
+        index.open(input);
+        index.cover(0);
+        if(index.table().size() == 0)
+            throw new IOException("Not gzip data");
+        return index;
     }
 
     /**
      * Use this method to create an index :)
      *
      * @param span A "checkpoint" will take place every span bytes of
-     *   decompressed data. A checkpoint takes about 32kb.
+     *   decompressed data. A checkpoint takes up to 32kb.
      */
     public static Index index(InputStream input, long span) throws IOException {
         return index(input, span, new NullProgressListener());
     }
+
+    /**
+     * Write an index in jzran's binary index format: a header, the table
+     * of access points, their windows (each deflate-compressed) and a
+     * trailer with a checksum and the size and mtime of the gzip data the
+     * index was built from.
+     */
+    public static void writeIndex(Index index, OutputStream os) throws IOException {
+        IndexFormat.write(index, os);
+    }
+
+    /**
+     * Write the checkpoints of an index of BGZF data as a .gzi file, as
+     * written by <tt>bgzip -i</tt>. Only checkpoints at the start of gzip
+     * members can be written this way.
+     */
+    public static void writeGzi(Index index, OutputStream os) throws IOException {
+        Bgzf.writeGzi(index.table(), os);
+    }
+
+    /**
+     * Read a .gzi index of the given BGZF data, as written by <tt>bgzip -i</tt>
+     * or {@link #writeGzi(Index, java.io.OutputStream)}. The blocks after the
+     * last one listed are read from the data, to find out its length. The
+     * index still needs to be opened over the data.
+     */
+    public static Index readGzi(InputStream gzi, SeekableInputStream bgzf) throws IOException {
+        long[] totals = new long[3];
+        CheckpointTable idx = Bgzf.readGzi(gzi, bgzf, totals);
+        return new Index(idx, totals[ZRan.DECOMPRESSED_SIZE], totals[ZRan.COMPRESSED_SIZE], totals[ZRan.MTIME]);
+    }
+
+    /**
+     * Read an index written by {@link #writeIndex(Index, java.io.OutputStream)}.
+     * Windows stay compressed in memory until a seek needs them.
+     */
+    public static Index readIndex(InputStream is) throws IOException {
+        return IndexFormat.read(is);
+    }
+
+    /**
+     * Open an index file written by {@link #writeIndex(Index, java.io.OutputStream)}
+     * by mapping it into memory. Only the table of access points is loaded;
+     * each window is read from the mapping when a seek needs it, so heap use
+     * and opening time don't depend on the number of windows.
+     */
+    public static Index mapIndex(File indexFile) throws IOException {
+        return IndexFormat.map(indexFile);
+    }
 }
@@ -0,0 +1,34 @@
+package net.jzran;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The data of a seekable stream in [start, end), read with positional
+ * reads, so that several of these may read the same stream at once.
+ */
+class RangeInputStream extends InputStream {
+    private final SeekableInputStream input;
+    private final long end;
+    private long pos;
+
+    RangeInputStream(SeekableInputStream input, long start, long end) {
+        this.input = input;
+        this.pos = start;
+        this.end = end;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (pos >= end)
+            return -1;
+        int n = input.read(pos, b, off, (int) Math.min(len, end - pos));
+        if (n > 0)
+            pos += n;
+        return n;
+    }
+}
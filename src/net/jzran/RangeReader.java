@@ -0,0 +1,180 @@
+package net.jzran;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Reads a batch of ranges of decompressed data, inflating each interval
+ * between access points at most once.
+ *
+ * Ranges are sorted by offset, and overlapping ones are merged into
+ * segments, each inflated once and copied into all of its ranges. Segments
+ * are grouped into runs: a segment joins the run of the previous one if
+ * its nearest access point isn't past the end of that one, so that going
+ * on from there is no more work than restoring. Each run is one forward
+ * pass of one extractor, and runs may be read in parallel.
+ */
+class RangeReader {
+    private final CheckpointTable index;
+    private final long length;
+    private final long[] offsets;
+    private final ByteBuffer[] destinations;
+    /* indexes of the ranges, by offset */
+    private final Integer[] order;
+    /* the runs, as [first, last + 1) of order */
+    private final List<int[]> runs = new ArrayList<int[]>();
+
+    RangeReader(CheckpointTable index, long length, long[] offsets, ByteBuffer[] destinations) {
+        if (offsets.length != destinations.length)
+            throw new IllegalArgumentException("As many offsets as destinations needed: " +
+                    offsets.length + ", " + destinations.length);
+        for (long offset : offsets) {
+            if (offset < 0)
+                throw new IllegalArgumentException("Negative offset: " + offset);
+        }
+        this.index = index;
+        this.length = length;
+        this.offsets = offsets;
+        this.destinations = destinations;
+        this.order = new Integer[offsets.length];
+        for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(RangeReader.this.offsets[a], RangeReader.this.offsets[b]);
+            }
+        });
+
+        int first = 0;
+        long runEnd = -1;
+        for (int i = 0; i < order.length; ) {
+            int next = segmentEnd(i);
+            long start = start(i);
+            if (i > 0 && index.out(index.find(start)) > runEnd) {
+                runs.add(new int[]{first, i});
+                first = i;
+            }
+            runEnd = end(next - 1, i);
+            i = next;
+        }
+        if (order.length > 0)
+            runs.add(new int[]{first, order.length});
+    }
+
+    /* decompressed offset of the k-th range by offset, clamped to the data */
+    private long start(int k) {
+        return Math.min(offsets[order[k]], length);
+    }
+
+    /* end of the segment whose ranges are first..last of order */
+    private long end(int last, int first) {
+        long res = 0;
+        for (int k = first; k <= last; ++k)
+            res = Math.max(res, Math.min(length, start(k) + destinations[order[k]].remaining()));
+        return res;
+    }
+
+    /* index in order past the last range of the segment starting at range first */
+    private int segmentEnd(int first) {
+        long end = start(first) + destinations[order[first]].remaining();
+        int k = first + 1;
+        while (k < order.length && start(k) < end) {
+            end = Math.max(end, start(k) + destinations[order[k]].remaining());
+            ++k;
+        }
+        return k;
+    }
+
+    /**
+     * Read all ranges, on the calling thread if pool is null.
+     */
+    void read(final ExtractorPool extractors, ForkJoinPool pool) throws IOException {
+        if (pool == null || runs.size() < 2) {
+            for (int[] run : runs)
+                read(extractors, run[0], run[1]);
+            return;
+        }
+        List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+        for (final int[] run : runs) {
+            tasks.add(pool.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    read(extractors, run[0], run[1]);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (ForkJoinTask<Void> task : tasks)
+                get(task);
+        } finally {
+            for (ForkJoinTask<Void> task : tasks)
+                task.cancel(true);
+        }
+    }
+
+    /* read the ranges first..last - 1 of order, in one forward pass */
+    private void read(ExtractorPool extractors, int first, int last) throws IOException {
+        ZRan.Extractor ex = extractors.acquire(index, start(first));
+        boolean ok = false;
+        try {
+            NativePool.Buffer out = ex.buffer(RandomAccessGZip.Index.BUF_SIZE);
+            for (int i = first; i < last; ) {
+                int next = segmentEnd(i);
+                long start = start(i);
+                long end = end(next - 1, i);
+                if (start < end && ex.position() != start)
+                    ex.seek(index, start);
+                for (long pos = start; pos < end; ) {
+                    int n = ex.extract(out, (int) Math.min(out.getSize(), end - pos));
+                    for (int k = i; k < next; ++k)
+                        copy(k, out, pos, n);
+                    pos += n;
+                }
+                for (int k = i; k < next; ++k) {
+                    ByteBuffer dst = destinations[order[k]];
+                    dst.position(dst.position() + (int) Math.min(dst.remaining(), Math.max(0, length - start(k))));
+                }
+                i = next;
+            }
+            ok = true;
+        } finally {
+            if (ok)
+                extractors.release(ex);
+            else
+                extractors.discard(ex);
+        }
+    }
+
+    /* copy what range k has of the n bytes of out, which are at pos */
+    private void copy(int k, NativePool.Buffer out, long pos, int n) {
+        ByteBuffer dst = destinations[order[k]];
+        long from = Math.max(pos, start(k));
+        long to = Math.min(pos + n, start(k) + dst.remaining());
+        if (from >= to)
+            return;
+        ByteBuffer part = dst.duplicate();
+        part.position(dst.position() + (int) (from - start(k)));
+        out.get(from - pos, part, (int) (to - from));
+    }
+
+    private static void get(ForkJoinTask<Void> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while reading");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
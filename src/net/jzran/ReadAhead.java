@@ -0,0 +1,139 @@
+package net.jzran;
+
+import com.sun.jna.Memory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the compressed input into native buffers for inflating. With more
+ * than one buffer, a reader thread fills a ring of them ahead of the
+ * inflater, so that reading the input and copying it into native memory
+ * overlap with inflating.
+ */
+class ReadAhead {
+    private final InputStream in;
+    private final int size;
+    private final BlockingQueue<Slot> free;
+    private final BlockingQueue<Slot> full;
+    private final Thread reader;
+
+    /* the slot last returned by next(), given back on the following call */
+    private Slot current;
+    /* without a reader thread: the only slot and its heap buffer */
+    private final byte[] buf;
+
+    /**
+     * @param size size of each buffer.
+     * @param buffers number of buffers; with one, there's no reader thread
+     *   and next() reads on the calling thread.
+     */
+    ReadAhead(InputStream in, int size, int buffers) {
+        this.in = in;
+        this.size = size;
+        this.free = new ArrayBlockingQueue<Slot>(buffers);
+        this.full = new ArrayBlockingQueue<Slot>(buffers);
+        for (int i = 0; i < buffers; ++i)
+            free.add(new Slot(new Memory(size)));
+        if (buffers == 1) {
+            this.buf = new byte[size];
+            this.reader = null;
+            return;
+        }
+        this.buf = null;
+        this.reader = new Thread("jzran read-ahead") {
+            public void run() {
+                readAll();
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * The next buffer of input. The buffer returned by the previous call
+     * may be refilled from now on.
+     *
+     * @return the buffer, or null at the end of the input.
+     */
+    Memory next() throws IOException {
+        if (current != null)
+            free.add(current);
+        current = null;
+        Slot slot;
+        if (reader == null) {
+            slot = free.remove();
+            slot.fill(in, buf);
+        } else {
+            try {
+                slot = full.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while reading ahead");
+            }
+        }
+        if (slot.error != null) {
+            IOException e = slot.error;
+            free.add(slot);
+            throw e;
+        }
+        if (slot.length == -1) {
+            free.add(slot);
+            return null;
+        }
+        current = slot;
+        return slot.data;
+    }
+
+    /**
+     * Number of bytes in the buffer last returned by next().
+     */
+    int length() {
+        return current.length;
+    }
+
+    /**
+     * Stop reading ahead. The input stream itself isn't closed.
+     */
+    void close() {
+        if (reader != null)
+            reader.interrupt();
+    }
+
+    private void readAll() {
+        byte[] heap = new byte[size];
+        try {
+            while (true) {
+                Slot slot = free.take();
+                slot.fill(in, heap);
+                full.put(slot);
+                if (slot.length == -1 || slot.error != null)
+                    return;
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private static class Slot {
+        private final Memory data;
+        private int length;
+        private IOException error;
+
+        Slot(Memory data) {
+            this.data = data;
+        }
+
+        void fill(InputStream in, byte[] heap) {
+            try {
+                length = in.read(heap, 0, heap.length);
+                if (length > 0)
+                    data.write(0, heap, 0, length);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package net.jzran;
+
+import java.io.IOException;
+
+/**
+ * Where a scan of gzip data by {@link ZRan#build_index} stopped, so that a
+ * later one can carry on from there once more data has been appended:
+ * either the start of a gzip member, or a deflate block boundary inside
+ * one, with what an access point there would need.
+ */
+class ResumePoint {
+    final long out;
+    final long in;
+    /* bit offset, or CheckpointTable.MEMBER_START */
+    final int bits;
+    /* the byte before in, if bits isn't 0 */
+    final int prime;
+    /* the window, as a zlib stream; empty at a member start */
+    final byte[] window;
+
+    ResumePoint(long out, long in, int bits, int prime, byte[] window) {
+        this.out = out;
+        this.in = in;
+        this.bits = bits;
+        this.prime = prime;
+        this.window = window;
+    }
+
+    /**
+     * The start of a gzip member, whose header is at in.
+     */
+    static ResumePoint memberStart(long out, long in) {
+        return new ResumePoint(out, in, CheckpointTable.MEMBER_START, 0, ZRan.NO_WINDOW);
+    }
+
+    /**
+     * Access point i of table, whose data is input.
+     */
+    static ResumePoint at(CheckpointTable table, int i, SeekableInputStream input) throws IOException {
+        if (table.memberStart(i))
+            return memberStart(table.out(i), table.in(i));
+        int bits = table.bits(i);
+        int prime = 0;
+        if (bits != 0) {
+            byte[] b = new byte[1];
+            if (input.read(table.in(i) - 1, b, 0, 1) != 1)
+                throw new IOException("End of stream");
+            prime = b[0] & 0xff;
+        }
+        return new ResumePoint(table.out(i), table.in(i), bits, prime, table.compressedWindow(i));
+    }
+
+    boolean memberStart() {
+        return (bits & CheckpointTable.MEMBER_START) != 0;
+    }
+
+    ResumePoint shift(long outBase, long inBase) {
+        return new ResumePoint(out + outBase, in + inBase, bits, prime, window);
+    }
+}
@@ -2,9 +2,56 @@ package net.jzran;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public abstract class SeekableInputStream extends InputStream {
     public abstract void seek(long offset) throws IOException;
 
     public abstract long length() throws IOException;
+
+    /**
+     * Read up to len bytes starting at the given position, like
+     * pread(2): several threads may call this at once. Implementations
+     * override this to leave the current position alone; this default
+     * one just seeks and reads under a lock, so it does move it.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream.
+     */
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        synchronized (this) {
+            seek(position);
+            return read(b, off, len);
+        }
+    }
+
+    /**
+     * Read up to dst.remaining() bytes starting at the given position into
+     * dst, like {@link #read(long, byte[], int, int)}. Implementations that
+     * can read straight into a direct buffer override this, so that
+     * inflating needn't copy the compressed data through the heap.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream.
+     */
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if (dst.hasArray()) {
+            int n = read(position, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (n > 0)
+                dst.position(dst.position() + n);
+            return n;
+        }
+        byte[] b = new byte[Math.min(dst.remaining(), 65536)];
+        int n = read(position, b, 0, b.length);
+        if (n > 0)
+            dst.put(b, 0, n);
+        return n;
+    }
+
+    /**
+     * A direct buffer over the data starting at the given position, for
+     * streams whose data is in memory already, so that it can be inflated
+     * in place; null for other streams, or at the end of the stream.
+     */
+    ByteBuffer mapped(long position) {
+        return null;
+    }
 }
@@ -0,0 +1,74 @@
+package net.jzran;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A bounded LRU of decoded windows, in front of a {@link WindowStore}
+ * that keeps them compressed. Safe for use by several threads.
+ *
+ * The windows are kept in slots that are searched linearly, which costs
+ * little next to restoring an access point, and a miss reuses the buffer of
+ * the least recently used slot, so that nothing is allocated once all the
+ * slots are filled.
+ */
+class WindowCache {
+    private static final int WINSIZE = CheckpointTable.WINSIZE;
+
+    /* access point whose window each slot has, -1 if none */
+    private final int[] points;
+    private final byte[][] windows;
+    /* when each slot was last used, counting uses of the cache */
+    private final long[] used;
+    private long uses;
+
+    WindowCache(int capacity) {
+        this.points = new int[capacity];
+        this.windows = new byte[capacity][];
+        this.used = new long[capacity];
+        Arrays.fill(points, -1);
+    }
+
+    /**
+     * @see WindowStore#get(int, com.sun.jna.Memory)
+     */
+    Pointer get(WindowStore store, int i, Memory scratch) throws IOException {
+        synchronized (this) {
+            int slot = slot(i);
+            if (slot >= 0) {
+                used[slot] = ++uses;
+                scratch.write(0, windows[slot], 0, WINSIZE);
+                return scratch;
+            }
+        }
+        byte[] window = WindowStore.windowBuffer();
+        store.read(i, window);
+        scratch.write(0, window, 0, WINSIZE);
+        synchronized (this) {
+            if (slot(i) >= 0)
+                return scratch;
+            int lru = 0;
+            for (int s = 1; s < points.length; ++s) {
+                if (used[s] < used[lru])
+                    lru = s;
+            }
+            if (windows[lru] == null)
+                windows[lru] = new byte[WINSIZE];
+            System.arraycopy(window, 0, windows[lru], 0, WINSIZE);
+            points[lru] = i;
+            used[lru] = ++uses;
+        }
+        return scratch;
+    }
+
+    private int slot(int i) {
+        for (int s = 0; s < points.length; ++s) {
+            if (points[s] == i)
+                return s;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,157 @@
+package net.jzran;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Holds the 32kb windows of the access points of a {@link CheckpointTable}.
+ */
+abstract class WindowStore {
+    static final int WINSIZE = CheckpointTable.WINSIZE;
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater();
+        }
+    };
+    private static final ThreadLocal<byte[]> WINDOW = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return newWindowBuffer();
+        }
+    };
+    private static final ThreadLocal<byte[]> DEFLATED = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[WINSIZE + WINSIZE / 8];
+        }
+    };
+
+    /**
+     * Number of windows stored.
+     */
+    abstract int size();
+
+    /**
+     * Length of window i as stored.
+     */
+    abstract int length(int i);
+
+    /**
+     * Decode the window of access point i.
+     *
+     * @param window a buffer from {@link #newWindowBuffer()}; the window
+     *   goes to its first WINSIZE bytes.
+     */
+    abstract void read(int i, byte[] window) throws IOException;
+
+    /**
+     * Window of access point i as a zlib stream, which is how windows
+     * are written to index files.
+     */
+    abstract byte[] compressed(int i) throws IOException;
+
+    /**
+     * Window of access point i: WINSIZE bytes of native memory, valid
+     * until the next call with the same scratch buffer.
+     *
+     * @param scratch WINSIZE bytes of native memory the store may
+     *   decode the window into.
+     */
+    Pointer get(int i, Memory scratch) throws IOException {
+        byte[] window = WINDOW.get();
+        read(i, window);
+        scratch.write(0, window, 0, WINSIZE);
+        return scratch;
+    }
+
+    /**
+     * Whether windows can be added.
+     */
+    boolean writable() {
+        return false;
+    }
+
+    /**
+     * Append the window of a new access point, oldest byte first.
+     */
+    void add(byte[] window) {
+        throw new UnsupportedOperationException("Window store is read-only");
+    }
+
+    /**
+     * Append a window that is already compressed, as returned by
+     * {@link #compressed(int)}.
+     */
+    void add(byte[] buf, int off, int len) {
+        throw new UnsupportedOperationException("Window store is read-only");
+    }
+
+    /**
+     * A buffer to decode windows into. It has one spare byte, so that
+     * inflating runs on to the adler32 check.
+     */
+    static byte[] newWindowBuffer() {
+        return new byte[WINSIZE + 1];
+    }
+
+    static byte[] windowBuffer() {
+        return WINDOW.get();
+    }
+
+    /**
+     * Inflate the zlib stream holding window i into a buffer from
+     * {@link #newWindowBuffer()}.
+     */
+    static void inflate(int i, byte[] buf, int off, int len, byte[] window) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(buf, off, len);
+        try {
+            int n = 0;
+            while (!inflater.finished()) {
+                int k = inflater.inflate(window, n, window.length - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary() || n == window.length))
+                    break;
+                n += k;
+            }
+            if (n != WINSIZE || !inflater.finished())
+                throw new IOException("Corrupt window of access point " + i);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt window of access point " + i + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deflate a window into a per-thread buffer.
+     *
+     * @return the buffer; its length is stored to len[0].
+     */
+    static byte[] deflate(byte[] window, int[] len) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(window, 0, WINSIZE);
+        deflater.finish();
+        byte[] buf = DEFLATED.get();
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == buf.length) {
+                byte[] bigger = new byte[2 * buf.length];
+                System.arraycopy(buf, 0, bigger, 0, n);
+                buf = bigger;
+                DEFLATED.set(buf);
+            }
+            n += deflater.deflate(buf, n, buf.length - n);
+        }
+        len[0] = n;
+        return buf;
+    }
+}
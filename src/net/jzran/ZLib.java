@@ -3,12 +3,29 @@ package net.jzran;
 import com.sun.jna.Library;
 import com.sun.jna.Native;
 import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
 
 import java.io.File;
 
 interface ZLib extends Library {
     static class Helper {
+        /* names of the system zlib to try, as JNA maps them */
+        private static final String[] SYSTEM_NAMES = {"z", "libz.so.1", "zlib1"};
+
+        /**
+         * Load the zlib given by jzran.zlib.file if it's set, else the
+         * system one, else the one bundled in lib.
+         */
         public static ZLib loadLibrary() {
+            if(System.getProperty("jzran.zlib.file") == null) {
+                for(String name : SYSTEM_NAMES) {
+                    try {
+                        return (ZLib) Native.loadLibrary(name, ZLib.class);
+                    } catch(UnsatisfiedLinkError e) {
+                        // try the next name
+                    }
+                }
+            }
             File res = getZlibFile().getAbsoluteFile();
             if(!res.exists()) {
                 throw new RuntimeException(
@@ -23,7 +40,10 @@ interface ZLib extends Library {
             }
         }
 
-        private static File getZlibFile() {
+        /**
+         * The zlib given by jzran.zlib.file, or else the bundled one.
+         */
+        static File getZlibFile() {
             String overridden = System.getProperty("jzran.zlib.file");
             if(overridden != null) {
                 return new File(overridden);
@@ -47,10 +67,14 @@ interface ZLib extends Library {
 
     int inflateSetDictionary(z_stream stream, byte[] dictionary, int length);
 
+    int inflateSetDictionary(z_stream stream, Pointer dictionary, int length);
+
     int inflateInit2_(z_stream stream, int windowBits, String version, int streamSize);
 
     int inflate(z_stream stream, int flush);
 
+    int inflateReset(z_stream stream);
+
     int inflateEnd(z_stream stream);
 
     String zlibVersion();
@@ -1,207 +1,848 @@
 package net.jzran;
 
 import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Serializable;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
  * This file is a nearly identical reimplementation of 'zran.c'
  * from the examples to zlib 1.2.3.
  */
 class ZRan {
-    private static final ZLib Z = ZLib.INSTANCE;
-
-    private static final int WINSIZE = 32768;
+    private static final int WINSIZE = CheckpointTable.WINSIZE;
     private static final int CHUNK = 65536;
+    /* input buffers read ahead by a pipelined build_index() */
+    private static final int READ_AHEAD_BUFFERS = 16;
 
-    static class Point implements Serializable {
-        private long out;
-        private long in;
-        private int bits;
-        private byte[] window;
+    /* stored in place of the window of an access point at a member start */
+    static final byte[] NO_WINDOW = new byte[0];
+
+    /* what build_index() is reading of the gzip data */
+    private static final int GZIP_HEADER = 0;
+    private static final int GZIP_DEFLATE = 1;
+    private static final int GZIP_TRAILER = 2;
+
+    /* slots of the totals array filled by build_index() */
+    static final int DECOMPRESSED_SIZE = 0;
+    static final int COMPRESSED_SIZE = 1;
+    static final int MTIME = 2;
+
+    /* returns the sliding window in order, left bytes of it being yet to be written */
+    static byte[] addpoint(CheckpointTable index, int bits, long in, long out, Memory window, int left) {
+        index.add(out, in, bits);
+        return linearWindow(window, left);
+    }
+
+    /* the sliding window in order, oldest byte first; left bytes of it are yet to be written */
+    private static byte[] linearWindow(Memory window, int left) {
+        byte[] res = new byte[WINSIZE];
+        window.read(WINSIZE - left, res, 0, left);
+        window.read(0, res, left, WINSIZE - left);
+        return res;
+    }
 
-        private Point(long out, long in, int bits) {
-            this.out = out;
-            this.in = in;
-            this.bits = bits;
-            this.window = new byte[WINSIZE];
+    /* store the windows of the oldest access points whose probes are done */
+    private static void flushProbes(LinkedList<WindowProbe> probes, boolean all, WindowWriter writer) {
+        while (!probes.isEmpty() && (all || probes.getFirst().done())) {
+            writer.store(probes.removeFirst());
         }
     }
 
-    static void addpoint(List<Point> index, int bits, long in, long out, int left, Memory window) {
-        Point p = new Point(out, in, bits);
-        index.add(p);
-        if (left != 0)
-            System.arraycopy(window.getByteArray(0, WINSIZE), WINSIZE - left, p.window, 0, left);
-        if (left < WINSIZE)
-            System.arraycopy(window.getByteArray(0, WINSIZE), 0, p.window, left, WINSIZE - left);
+    /**
+     * Index gzip data that must end at the end of a gzip member.
+     *
+     * @see #build_index(InputStream, long, long, long, long[], ProgressListener, boolean, ResumePoint[])
+     */
+    static CheckpointTable build_index(InputStream in, long span, long compressedSpan, long[] totals,
+                                       ProgressListener<Long> listener, boolean pipelined) throws IOException {
+        ResumePoint[] resume = new ResumePoint[1];
+        CheckpointTable index = build_index(in, span, compressedSpan, Long.MAX_VALUE, totals, listener, pipelined,
+                resume);
+        if (index != null && (resume[0] == null || !resume[0].memberStart()))
+            throw new IOException("zlib: data error");
+        return index;
     }
 
-    static List<Point> build_index(InputStream in, long span, long[] decompressedSize, ProgressListener<Long> listener)
-            throws IOException {
+    /**
+     * @param span an access point is added at the first block boundary
+     *   after span bytes of output since the last one...
+     * @param compressedSpan ...or after compressedSpan bytes of input.
+     * @param until stop at the first block boundary after until bytes of
+     *   output, rather than at the end of the data.
+     * @param pipelined whether to read the input on a thread of its own,
+     *   ahead of inflating, and to store windows on another one.
+     * @param resume resume[0] is where in the data in starts: null for
+     *   the start of gzip data, else offsets of access points and totals
+     *   are relative to it. On return, resume[0] is where the data ended,
+     *   relative likewise, or null if it ended inside a deflate block. The
+     *   data may end anywhere; it's up to the caller to mind whether it
+     *   ended at the end of a gzip member.
+     */
+    static CheckpointTable build_index(InputStream in, long span, long compressedSpan, long until, long[] totals,
+                                       ProgressListener<Long> listener, boolean pipelined,
+                                       ResumePoint[] resume) throws IOException {
+        InflateStream strm = null;  /* raw inflate; the gzip wrapper is read here */
         int ret;
         long totin, totout;  /* our own total counters to avoid 4GB limit */
         long last;                 /* totout value of last access Point */
-        List<Point> index;       /* access points being generated */
-        z_stream strm = new z_stream();
-        Memory input = new Memory(CHUNK);
-        ByteBuffer bb = input.getByteBuffer(0, CHUNK);
-        Memory window = new Memory(WINSIZE);
-        byte[] buf = new byte[CHUNK];
-
-        /* initialize inflate */
-        strm.zalloc = null;
-        strm.zfree = null;
-        strm.opaque = null;
-        strm.avail_in = 0;
-        strm.next_in = null;
-        ret = Z.inflateInit2_(strm, 47, Z.zlibVersion(), ZLib.STREAM_SIZE);      /* automatic zlib or gzip decoding */
+        long lastIn;               /* totin value of last access Point */
+        CheckpointTable index;   /* access points being generated */
+        ReadAhead reader = new ReadAhead(in, CHUNK, pipelined ? READ_AHEAD_BUFFERS : 1);
+        Memory input = null;       /* the current buffer of input */
+        NativePool.Buffer window = NativePool.SHARED.take(WINSIZE);
+        int len = 0;               /* number of bytes in input */
+        byte prev = 0;             /* last byte of the previous input */
+        int endPrime = 0;          /* last byte of input inflated, when stopping */
+        WindowWriter writer = null;
+        LinkedList<WindowProbe> probes = new LinkedList<WindowProbe>();
+        int wrapper;                   /* what the input is at: GZIP_HEADER, GZIP_DEFLATE or GZIP_TRAILER */
+        byte[] header = new byte[64];  /* the header of the next member, as far as it's read */
+        int headerLength = 0;
+        byte[] trailer = new byte[8];  /* the trailer of the member that ended, as far as it's read */
+        int trailerLength = 0;
+        CRC32 crc = new CRC32();       /* of the member being inflated... */
+        boolean checked = true;        /* ...unless the scan started inside it */
+        long memberOut = 0;            /* totout where it started */
+        boolean done = false;
+        ResumePoint from = resume[0];
+        Object event = Events.indexBuilding();
+
         try {
-            if (ret != ZLib.Z_OK)
-                throw new IOException("zlib error: " + ret);
+            /* initialize inflate */
+            strm = NativePool.SHARED.stream();
+            strm.setInput(null, 0);
+            strm.setOutput(null, 0);
+            wrapper = GZIP_HEADER;
+            if (from != null && !from.memberStart()) {
+                wrapper = GZIP_DEFLATE;
+                checked = false;
+                int bits = from.bits & 7;
+                if (bits != 0)
+                    strm.inflatePrime(bits, from.prime >>> (8 - bits));
+                byte[] dictionary = WindowStore.newWindowBuffer();
+                WindowStore.inflate(0, from.window, 0, from.window.length, dictionary);
+                /* the sliding window starts out as that window */
+                window.write(0, dictionary, 0, WINSIZE);
+                strm.inflateSetDictionary(window, WINSIZE);
+            }
 
             /* inflate the input, maintain a sliding window, and build an index -- this
   also validates the integrity of the compressed data using the check
-  information at the end of the gzip or zlib stream */
-            totin = totout = last = 0;
-            index = new ArrayList<Point>();               /* will be allocated by first addpoint() */
-            strm.avail_out = 0;
+  information at the end of each gzip member */
+            totin = totout = last = lastIn = 0;
+            index = new CheckpointTable();
+            writer = new WindowWriter(index.windows(), pipelined);
+            if (wrapper == GZIP_DEFLATE) {
+                index.add(0, 0, from.bits);
+                probes.add(WindowProbe.stored(from.window));
+            }
             do {
                 if (!listener.reportProgress(totin))
                     return null;
 
                 /* get some compressed data from input file */
-                strm.avail_in = in.read(buf, 0, CHUNK);
-                if (strm.avail_in == -1)
-                    throw new IOException("zlib: data error");
-                bb.position(0);
-                bb.put(buf, 0, strm.avail_in);
-                strm.next_in = input;
+                if (len > 0)
+                    prev = input.getByte(len - 1);
+                input = reader.next();
+                if (input == null) {
+                    endPrime = prev & 0xff;
+                    break;
+                }
+                len = reader.length();
+                strm.setInput(input, len);
+
+                /* let the pending probes see it too */
+                for (WindowProbe probe : probes)
+                    probe.feed(input, len);
+                flushProbes(probes, false, writer);
 
                 /* process all of that, or until end of stream */
                 do {
-                    /* reset sliding window if necessary */
-                    if (strm.avail_out == 0) {
-                        strm.avail_out = WINSIZE;
-                        strm.next_out = window;
+                    int at = len - strm.availIn();
+
+                    /* the trailer of a member that ended: its CRC and length */
+                    if (wrapper == GZIP_TRAILER) {
+                        int n = Math.min(trailer.length - trailerLength, len - at);
+                        input.read(at, trailer, trailerLength, n);
+                        trailerLength += n;
+                        totin += n;
+                        strm.setInput(input.share(at + n), len - at - n);
+                        if (trailerLength < trailer.length)
+                            continue;
+                        if (checked && (littleEndian(trailer, 0) != crc.getValue() ||
+                                littleEndian(trailer, 4) != ((totout - memberOut) & 0xffffffffL)))
+                            throw new IOException("zlib: data error");
+                        wrapper = GZIP_HEADER;
+                        if (totout >= until) {
+                            done = true;
+                            break;
+                        }
+                        continue;
                     }
 
+                    /* another member may follow the one that ended; anything
+                       else, like zero padding, ends the data */
+                    if (wrapper == GZIP_HEADER) {
+                        if (headerLength == 0 && input.getByte(at) != (byte) 0x1f) {
+                            if (totin == 0 && from == null)
+                                throw new IOException("Not gzip data");
+                            done = true;
+                            break;
+                        }
+                        if (headerLength == header.length)
+                            header = Arrays.copyOf(header, 2 * header.length);
+                        int n = Math.min(header.length - headerLength, len - at);
+                        input.read(at, header, headerLength, n);
+                        headerLength += n;
+                        int length = gzipHeaderLength(header, headerLength);
+                        if (length == -1)
+                            throw new IOException("Bad gzip header at " + totin);
+                        if (length == -2) {
+                            /* the rest is in the next input */
+                            strm.setInput(input.share(at + n), len - at - n);
+                            continue;
+                        }
+                        at += n - (headerLength - length);
+                        headerLength = 0;
+                        strm.setInput(input.share(at), len - at);
+                        if (totin == 0)
+                            totals[MTIME] = littleEndian(header, 4);
+
+                        /* right after the header of each gzip member there's an
+                           access Point that needs no window */
+                        index.add(totout, totin, CheckpointTable.MEMBER_START);
+                        probes.add(WindowProbe.empty());
+                        flushProbes(probes, false, writer);
+                        totin += length;
+                        last = totout;
+                        lastIn = totin;
+                        crc.reset();
+                        checked = true;
+                        memberOut = totout;
+                        wrapper = GZIP_DEFLATE;
+                        continue;
+                    }
+
+                    /* reset sliding window if necessary */
+                    if (strm.availOut() == 0)
+                        strm.setOutput(window, WINSIZE);
+
                     /* inflate until out of input, output, or at end of block --
              update the total input and output counters */
-                    totin += strm.avail_in;
-                    totout += strm.avail_out;
-                    ret = Z.inflate(strm, ZLib.Z_BLOCK);      /* return at end of block */
-                    totin -= strm.avail_in;
-                    totout -= strm.avail_out;
+                    int outBefore = strm.availOut();
+                    totin += strm.availIn();
+                    totout += outBefore;
+                    ret = strm.inflate(ZLib.Z_BLOCK);      /* return at end of block */
+                    totin -= strm.availIn();
+                    totout -= strm.availOut();
+                    if (checked)
+                        crc.update(window.slice(WINSIZE - outBefore, outBefore - strm.availOut()));
                     if (ret == ZLib.Z_NEED_DICT)
                         ret = ZLib.Z_DATA_ERROR;
                     if (ret == ZLib.Z_MEM_ERROR || ret == ZLib.Z_DATA_ERROR)
                         throw new IOException("zlib error: " + ret);
-                    if (ret == ZLib.Z_STREAM_END)
-                        break;
+                    if (ret == ZLib.Z_STREAM_END) {
+                        /* the rest of the input is the wrapper's again */
+                        at = len - strm.availIn();
+                        strm.inflateReset();
+                        strm.setInput(input.share(at), len - at);
+                        wrapper = GZIP_TRAILER;
+                        trailerLength = 0;
+                        continue;
+                    }
 
                     /* if at end of block, consider adding an index entry (note that if
                       data_type indicates an end-of-block, then all of the
                       uncompressed data from that block has been delivered, and none
                       of the compressed data after that block has been consumed,
-                      except for up to seven bits) -- the totout == 0 provides an
-                      entry Point after the zlib or gzip header, and assures that the
-                      index always has at least one access Point; we avoid creating an
-                      access Point after the last block by checking bit 6 of data_type
+                      except for up to seven bits) -- we avoid creating an
+                      access Point after the last block by checking bit 6 of data_type.
                     */
-                    if ((0 != (strm.data_type & 128)) && (0 == (strm.data_type & 64)) &&
-                            (totout == 0 || totout - last > span)) {
-                        addpoint(index, strm.data_type & 7, totin, totout, strm.avail_out, window);
+                    int dataType = strm.dataType();
+                    if ((0 != (dataType & 128)) && (0 == (dataType & 64)) &&
+                            (totout - last > span || totin - lastIn > compressedSpan)) {
+                        int bits = dataType & 7;
+                        int consumed = len - strm.availIn();
+                        int prime = (bits == 0) ? 0 : (consumed > 0 ? input.getByte(consumed - 1) : prev) & 0xff;
+                        WindowProbe probe = new WindowProbe(
+                                addpoint(index, bits, totin, totout, window, strm.availOut()), bits, prime);
+                        probes.add(probe);
+                        probe.feed(input.share(consumed), len - consumed);
+                        flushProbes(probes, false, writer);
                         last = totout;
+                        lastIn = totin;
                     }
-                } while (strm.avail_in != 0);
-            } while (ret != ZLib.Z_STREAM_END);
+                    if ((0 != (dataType & 128)) && (0 == (dataType & 64)) && totout >= until) {
+                        int consumed = len - strm.availIn();
+                        endPrime = (consumed > 0 ? input.getByte(consumed - 1) : prev) & 0xff;
+                        done = true;
+                        break;
+                    }
+                } while (strm.availIn() != 0);
+            } while (!done);
 
-            decompressedSize[0] = totout;
+            flushProbes(probes, true, writer);
+            writer.finish();
+            totals[DECOMPRESSED_SIZE] = totout;
+            totals[COMPRESSED_SIZE] = totin;
+            int dataType = strm.dataType();
+            if (from != null && totin == 0) {
+                /* nothing new */
+                resume[0] = from.shift(-from.out, -from.in);
+            } else if (wrapper == GZIP_HEADER) {
+                /* between members, or inside a header that's still being written */
+                resume[0] = ResumePoint.memberStart(totout, totin);
+            } else if (wrapper == GZIP_DEFLATE && (0 != (dataType & 128)) && (0 == (dataType & 64))) {
+                /* stopped at a block boundary: at until, or where data being
+                   written ends after a flush */
+                int bits = dataType & 7;
+                int[] length = new int[1];
+                byte[] blob = WindowStore.deflate(linearWindow(window, strm.availOut()), length);
+                resume[0] = new ResumePoint(totout, totin, bits, (bits == 0) ? 0 : endPrime,
+                        Arrays.copyOf(blob, length[0]));
+            } else {
+                resume[0] = null;
+            }
+            Events.indexBuilt(event, span, totin, totout, index.size());
             return index;
         } finally {
-            Z.inflateEnd(strm);
+            if (strm != null)
+                NativePool.SHARED.give(strm);
+            NativePool.SHARED.give(window);
+            reader.close();
+            if (writer != null)
+                writer.shutdown();
+            for (WindowProbe probe : probes)
+                probe.close();
         }
     }
 
-    private static Memory discard = new Memory(WINSIZE);
+    /* the unsigned 32-bit little-endian number at buf[pos] */
+    private static long littleEndian(byte[] buf, int pos) {
+        return (buf[pos] & 0xffL) | (buf[pos + 1] & 0xffL) << 8 | (buf[pos + 2] & 0xffL) << 16 |
+                (buf[pos + 3] & 0xffL) << 24;
+    }
+
+    /**
+     * Stores the windows of access points as their probes are done, in
+     * order. When pipelined, this happens on a thread of its own, so that
+     * sparsifying and compressing windows is off the inflating thread.
+     */
+    private static class WindowWriter {
+        private final WindowStore store;
+        private final ExecutorService executor;
+        private volatile RuntimeException failure;
+
+        WindowWriter(WindowStore store, boolean pipelined) {
+            this.store = store;
+            this.executor = pipelined ? Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "jzran window writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }) : null;
+        }
+
+        void store(final WindowProbe probe) {
+            if (executor == null) {
+                write(probe);
+                return;
+            }
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        write(probe);
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                }
+            });
+        }
+
+        private void write(WindowProbe probe) {
+            try {
+                byte[] stored = probe.stored();
+                if (stored != null)
+                    store.add(stored, 0, stored.length);
+                else
+                    store.add(probe.done() ? probe.sparseWindow() : probe.window());
+            } finally {
+                probe.close();
+            }
+        }
+
+        /* wait until all windows are stored */
+        void finish() throws IOException {
+            if (executor == null)
+                return;
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while storing windows");
+            }
+            if (failure != null)
+                throw failure;
+        }
+
+        /* let the windows already handed over be stored, but don't wait */
+        void shutdown() {
+            if (executor != null)
+                executor.shutdown();
+        }
+    }
+
+    /**
+     * Finds out which bytes of the window of an access point the data
+     * following it actually uses, so that the others needn't be stored.
+     *
+     * Back-references reach at most WINSIZE bytes back, so only the first
+     * WINSIZE bytes after the access point can refer to the window; later
+     * ones can only copy those. These bytes are inflated three times, with
+     * marker dictionaries in place of the window: byte j of the first one
+     * is the low byte of j, of the second one the high byte of j, of the
+     * third one the complement of the first. An output byte that differs
+     * between the first and the third came from the window, and the first
+     * two tell from which position.
+     */
+    static class WindowProbe {
+        private static final Memory[] MARKERS = markers();
+
+        /* the window, oldest byte first */
+        private final byte[] window;
+        /* the window as already stored elsewhere, or null */
+        private final byte[] stored;
+        private final InflateStream[] streams = new InflateStream[3];
+        private final NativePool.Buffer[] outs = new NativePool.Buffer[3];
+        private final int[] produced = new int[3];
+        private final boolean[] ended = new boolean[3];
+
+        WindowProbe(byte[] window, int bits, int prime) throws IOException {
+            this.window = window;
+            this.stored = null;
+            try {
+                for (int k = 0; k < 3; ++k) {
+                    InflateStream strm = NativePool.SHARED.stream();
+                    streams[k] = strm;
+                    if (bits != 0)
+                        strm.inflatePrime(bits, prime >>> (8 - bits));
+                    strm.inflateSetDictionary(MARKERS[k], WINSIZE);
+                    outs[k] = NativePool.SHARED.take(WINSIZE);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private WindowProbe(byte[] stored) {
+            this.window = null;
+            this.stored = stored;
+            Arrays.fill(ended, true);
+        }
+
+        /* a probe for an access point that needs no window */
+        static WindowProbe empty() {
+            return new WindowProbe(NO_WINDOW);
+        }
+
+        /* a probe for an access point whose window is known already, as a zlib stream */
+        static WindowProbe stored(byte[] window) {
+            return new WindowProbe(window);
+        }
+
+        /* the window to store as it is, if it's known already */
+        byte[] stored() {
+            return stored;
+        }
+
+        private static Memory[] markers() {
+            Memory[] res = new Memory[3];
+            byte[][] bytes = new byte[3][WINSIZE];
+            for (int j = 0; j < WINSIZE; ++j) {
+                bytes[0][j] = (byte) j;
+                bytes[1][j] = (byte) (j >>> 8);
+                bytes[2][j] = (byte) ~j;
+            }
+            for (int k = 0; k < 3; ++k) {
+                res[k] = new Memory(WINSIZE);
+                res[k].write(0, bytes[k], 0, WINSIZE);
+            }
+            return res;
+        }
+
+        void feed(Pointer in, int len) throws IOException {
+            for (int k = 0; k < 3; ++k) {
+                InflateStream strm = streams[k];
+                if (strm == null)
+                    continue;
+                strm.setInput(in, len);
+                while (strm.availIn() != 0 && !ended[k] && produced[k] < WINSIZE) {
+                    strm.setOutput(outs[k].share(produced[k]), WINSIZE - produced[k]);
+                    int ret = strm.inflate(ZLib.Z_NO_FLUSH);
+                    produced[k] = WINSIZE - strm.availOut();
+                    if (ret == ZLib.Z_STREAM_END)
+                        ended[k] = true;
+                    else if (ret != ZLib.Z_OK)
+                        throw new IOException("zlib error: " + ret);
+                }
+                strm.setInput(null, 0);
+            }
+        }
+
+        boolean done() {
+            for (int k = 0; k < 3; ++k) {
+                if (!ended[k] && produced[k] < WINSIZE)
+                    return false;
+            }
+            return true;
+        }
+
+        /* the window, oldest byte first */
+        byte[] window() {
+            return window;
+        }
 
+        /* the window with the bytes that aren't used set to zero */
+        byte[] sparseWindow() {
+            int n = Math.min(produced[0], Math.min(produced[1], produced[2]));
+            if (n == 0) {
+                Arrays.fill(window, (byte) 0);
+                return window;
+            }
+            byte[] lo = outs[0].getByteArray(0, n);
+            byte[] hi = outs[1].getByteArray(0, n);
+            byte[] inv = outs[2].getByteArray(0, n);
+            boolean[] used = new boolean[WINSIZE];
+            for (int p = 0; p < n; ++p) {
+                if (lo[p] != inv[p])
+                    used[(lo[p] & 0xff) | (hi[p] & 0x7f) << 8] = true;
+            }
+            for (int j = 0; j < WINSIZE; ++j) {
+                if (!used[j])
+                    window[j] = 0;
+            }
+            return window;
+        }
+
+        void close() {
+            for (int k = 0; k < 3; ++k) {
+                if (streams[k] != null) {
+                    NativePool.SHARED.give(streams[k]);
+                    streams[k] = null;
+                }
+                NativePool.SHARED.give(outs[k]);
+                outs[k] = null;
+            }
+        }
+    }
+
+    /**
+     * Inflates the data from some position on. It reads the compressed
+     * data with positional reads, so any number of extractors may work
+     * on the same stream at once, each from a thread of its own.
+     */
     static class Extractor {
-        private final byte[] bbuf = new byte[CHUNK];
-        private final Memory input = new Memory(CHUNK);
-        private final ByteBuffer bb = input.getByteBuffer(0, CHUNK);
-        private final z_stream stream;
+        private static final NativePool POOL = NativePool.SHARED;
+
+        /* room for a gzip header, unless it has long fields */
+        private final byte[] bbuf = new byte[512];
+        private final NativePool.Buffer input = POOL.take(CHUNK);
+        private final ByteBuffer bb = input.view();
+        private final NativePool.Buffer dictionary = POOL.take(WINSIZE);
+        private final NativePool.Buffer discard = POOL.take(WINSIZE);
+        private final InflateStream stream;
+        /* whether the stream goes back to the pool on close() */
+        private final boolean pooledStream;
+        private boolean closed;
         private final SeekableInputStream inStream;
+        /* the data zlib reads in place, if the stream is mapped; kept
+           here so that it stays mapped while zlib reads it */
+        private ByteBuffer mapped;
+        /* output buffer handed out by buffer() */
+        private NativePool.Buffer output;
+        /* offset in the compressed data of the next byte to read */
+        private long in;
+        /* offset in the decompressed data of the next byte extract() delivers,
+           -1 before the first seek */
+        private long out = -1;
+        /* where to count what this does, if anywhere; set by whoever uses it */
+        Metrics metrics;
 
-        Extractor(SeekableInputStream inStream, List<Point> index, long offset) throws IOException {
+        /**
+         * An extractor whose buffers and inflate stream come from a pool
+         * shared by all, and go back to it on {@link #close()}.
+         */
+        Extractor(SeekableInputStream inStream) throws IOException {
+            this(inStream, POOL.stream(), true);
+        }
+
+        /**
+         * An extractor with a stream of its own, which it ends on close().
+         */
+        Extractor(SeekableInputStream inStream, InflateStream stream) {
+            this(inStream, stream, false);
+        }
+
+        private Extractor(SeekableInputStream inStream, InflateStream stream, boolean pooledStream) {
             this.inStream = inStream;
+            this.stream = stream;
+            this.pooledStream = pooledStream;
+        }
+
+        /**
+         * Position the extractor at the given offset of the decompressed data.
+         * If the offset lies ahead of the current position and no access point
+         * lies between the two, we just keep inflating forward; otherwise the
+         * inflate state is reset (not reallocated) and restored from the
+         * nearest access point.
+         */
+        void seek(CheckpointTable index, long offset) throws IOException {
+            seek(index, offset, null);
+        }
+
+        /**
+         * Like {@link #seek(CheckpointTable, long)}, telling adaptive how much
+         * data is skipped, and capturing access points for it on the way
+         * if it asks to.
+         */
+        void seek(CheckpointTable index, long offset, AdaptiveCheckpoints adaptive) throws IOException {
+            Metrics m = metrics;
+            Object event = Events.seeking();
+            long start = (m != null) ? System.nanoTime() : 0;
+            long from = out;
+            int here = index.find(offset);
+            boolean restored = (offset < out || index.out(here) > out);
+            if (restored) {
+                int ret = stream.inflateReset();
+                if (ret != ZLib.Z_OK)
+                    throw new IOException("zlib error: " + ret);
+                restore(index, here);
+            }
+            long restoreTime = (m != null) ? System.nanoTime() - start : 0;
+            long discarded = offset - out;
+            long spacing = (adaptive == null || offset == out) ? 0 : adaptive.skipping(index, here, out, offset);
+            if (spacing == 0)
+                skip(offset - out);
+            else
+                skip(offset - out, spacing, adaptive);
+            if (m != null)
+                m.seeked(restored, restoreTime, discarded, System.nanoTime() - start);
+            Events.seeked(event, offset, from, restored, discarded);
+        }
+
+        long position() {
+            return out;
+        }
 
-            Point here = findIndexPoint(index, offset);
-
-            z_stream strm = new z_stream();
-            strm.zalloc = null;
-            strm.zfree = null;
-            strm.opaque = null;
-            strm.avail_in = 0;
-            strm.next_in = null;
-            int init = Z.inflateInit2_(
-                    strm, -15, Z.zlibVersion(), ZLib.STREAM_SIZE);
-            if (init != ZLib.Z_OK)
-                throw new IOException("zlib error: " + init);
-            this.stream = strm;
-
-            inStream.seek(here.in - ((here.bits != 0) ? 1 : 0));
-            if (here.bits != 0) {
-                int prime = inStream.read();
-                if (prime == -1)
+        /**
+         * A native buffer of at least the given size (at most 1mb), owned by
+         * this extractor, for extracting into; valid until it's closed.
+         */
+        NativePool.Buffer buffer(int size) {
+            if (output == null || output.getSize() < size) {
+                POOL.give(output);
+                output = POOL.take(Math.max(size, CHUNK));
+            }
+            return output;
+        }
+
+        private void restore(CheckpointTable index, int here) throws IOException {
+            stream.setInput(null, 0);
+            out = index.out(here);
+            if (index.memberStart(here)) {
+                if (!startMember(index.in(here)))
+                    throw new IOException("No gzip member at " + index.in(here));
+                return;
+            }
+            int bits = index.bits(here);
+            in = index.in(here) - ((bits != 0) ? 1 : 0);
+            if (bits != 0) {
+                int nr = inStream.read(in, bbuf, 0, 1);
+                if (nr != 1)
                     throw new IOException("End of stream");
-                Z.inflatePrime(stream, here.bits, prime >>> (8 - here.bits));
+                in++;
+                stream.inflatePrime(bits, (bbuf[0] & 0xff) >>> (8 - bits));
             }
-            Z.inflateSetDictionary(stream, here.window, WINSIZE);
+            stream.inflateSetDictionary(index.window(here, dictionary), WINSIZE);
+        }
 
-            for (long rem = offset - here.out; rem > 0; ) {
+        private void skip(long len) throws IOException {
+            for (long rem = len; rem > 0; ) {
                 rem -= extract(discard, (rem > WINSIZE) ? WINSIZE : (int) rem);
             }
         }
 
+        /*
+         * Skip len bytes, stopping at the end of each deflate block, to add
+         * an access point there if the last one added is at least spacing
+         * bytes back. The discarded data goes round the discard buffer,
+         * which is then the window.
+         */
+        private void skip(long len, long spacing, AdaptiveCheckpoints adaptive) throws IOException {
+            long start = out;
+            long end = out + len;
+            long last = out;
+            while (out < end) {
+                int at = (int) ((out - start) % WINSIZE);
+                extract(discard.share(at), (int) Math.min(end - out, WINSIZE - at), ZLib.Z_BLOCK);
+                if ((stream.dataType() & 128) != 0 && (stream.dataType() & 64) == 0 &&
+                        out - start >= WINSIZE && out - last >= spacing) {
+                    byte[] window = new byte[WINSIZE];
+                    at = (int) ((out - start) % WINSIZE);
+                    discard.read(at, window, 0, WINSIZE - at);
+                    discard.read(0, window, WINSIZE - at, at);
+                    adaptive.capture(out, in - stream.availIn(), stream.dataType() & 7, window);
+                    last = out;
+                }
+            }
+        }
+
+        /**
+         * Give the buffers and the stream back to the pool, or end the
+         * stream if it's not from there. Closing twice does nothing.
+         */
         public void close() {
-            Z.inflateEnd(stream);
+            if (closed)
+                return;
+            closed = true;
+            if (pooledStream)
+                POOL.give(stream);
+            else
+                stream.inflateEnd();
+            POOL.give(input);
+            POOL.give(dictionary);
+            POOL.give(discard);
+            POOL.give(output);
+            output = null;
+            mapped = null;
         }
 
-        public int extract(Memory buf, int len) throws IOException {
-            stream.next_out = buf;
-            stream.avail_out = len;
-            if (stream.avail_in == 0) {
-                int nr = inStream.read(bbuf);
+        public int extract(Pointer buf, int len) throws IOException {
+            return extract(buf, len, ZLib.Z_NO_FLUSH);
+        }
+
+        private int extract(Pointer buf, int len, int flush) throws IOException {
+            Metrics m = metrics;
+            stream.setOutput(buf, len);
+            if (stream.availIn() == 0) {
+                long start = (m != null) ? System.nanoTime() : 0;
+                /* inflate data that's in memory already in place */
+                mapped = inStream.mapped(in);
+                int nr;
+                Pointer next;
+                if (mapped != null) {
+                    nr = mapped.remaining();
+                    next = Native.getDirectBufferPointer(mapped);
+                } else {
+                    bb.clear();
+                    nr = inStream.read(in, bb);
+                    next = input;
+                }
                 if (nr == -1)
                     throw new IOException("End of stream");
-                bb.position(0);
-                bb.put(bbuf, 0, nr);
-                stream.next_in = input;
-                stream.avail_in = nr;
+                in += nr;
+                stream.setInput(next, nr);
+                if (m != null)
+                    m.compressedRead(nr, System.nanoTime() - start);
             }
-            int ret = Z.inflate(stream, ZLib.Z_NO_FLUSH);       /* normal inflate */
+            long start = (m != null) ? System.nanoTime() : 0;
+            int ret = stream.inflate(flush);
+            if (m != null)
+                m.inflated(len - stream.availOut(), System.nanoTime() - start);
             switch (ret) {
                 case ZLib.Z_NEED_DICT:
                 case ZLib.Z_MEM_ERROR:
                 case ZLib.Z_DATA_ERROR:
                     throw new IOException("zlib error: " + ret);
             }
-            return len - stream.avail_out;
+            int n = len - stream.availOut();
+            if (ret == ZLib.Z_STREAM_END && !nextMember() && n == 0)
+                throw new IOException("Unexpected end of compressed data");
+            out += n;
+            return n;
+        }
+
+        /**
+         * Go on to the gzip member following the one that has just ended,
+         * skipping its trailer and the header of the next one.
+         *
+         * @return false if no member follows.
+         */
+        private boolean nextMember() throws IOException {
+            return startMember(in - stream.availIn() + 8);
         }
 
-        private static Point findIndexPoint(List<Point> index, long offset) {
-            for (int j = 0; j < index.size() - 1; ++j) {
-                if (index.get(j + 1).out > offset)
-                    return index.get(j);
+        /**
+         * Skip the header of the gzip member at the given offset of the
+         * compressed data and get ready to inflate the member.
+         *
+         * @return false if there's no member there.
+         */
+        private boolean startMember(long start) throws IOException {
+            byte[] head = bbuf;
+            int nr = inStream.read(start, head, 0, head.length);
+            int header = (nr > 0) ? gzipHeaderLength(head, nr) : -1;
+            /* a name or comment may make the header of any length */
+            while (header == -2 && nr == head.length) {
+                head = new byte[Math.max(CHUNK, 2 * head.length)];
+                nr = inStream.read(start, head, 0, head.length);
+                header = gzipHeaderLength(head, nr);
             }
-            return index.get(index.size() - 1);
+            if (header == -1)
+                return false;
+            if (header == -2)
+                throw new IOException("Truncated gzip header at " + start);
+            int ret = stream.inflateReset();
+            if (ret != ZLib.Z_OK)
+                throw new IOException("zlib error: " + ret);
+            stream.setInput(null, 0);
+            in = start + header;
+            return true;
+        }
+    }
+
+    /**
+     * Length of the gzip header at the start of buf.
+     *
+     * @return -1 if buf doesn't start with a gzip header, -2 if the header
+     *   is longer than len.
+     */
+    static int gzipHeaderLength(byte[] buf, int len) {
+        if (len < 10)
+            return (len > 0 && buf[0] == (byte) 0x1f && (len < 2 || buf[1] == (byte) 0x8b)) ? -2 : -1;
+        if (buf[0] != (byte) 0x1f || buf[1] != (byte) 0x8b || buf[2] != 8)
+            return -1;
+        int flags = buf[3] & 0xff;
+        int pos = 10;
+        if ((flags & 4) != 0) {                 /* FEXTRA */
+            if (pos + 2 > len)
+                return -2;
+            pos += 2 + ((buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8);
+        }
+        for (int field = 8; field <= 16; field <<= 1) {  /* FNAME, FCOMMENT */
+            if ((flags & field) == 0)
+                continue;
+            while (pos < len && buf[pos] != 0)
+                pos++;
+            pos++;
         }
+        if ((flags & 2) != 0)                   /* FHCRC */
+            pos += 2;
+        return (pos > len) ? -2 : pos;
     }
 
 }
@@ -1,13 +1,29 @@
 package net.jzran;
 
+import com.sun.jna.Memory;
 import org.junit.Test;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 public class RandomAccessGZipTest {
     @Test
@@ -32,6 +48,778 @@ public class RandomAccessGZipTest {
         testCorrectness(testPair.buf, new FileSeekableInputStream(new RandomAccessFile(tmp, "r")));
     }
 
+    @Test
+    public void testGzipMapped() throws Exception {
+        TestPair testPair = new TestPair(true);
+        File tmp = File.createTempFile("zip-test", ".gz");
+        tmp.deleteOnExit();
+        OutputStream os = new FileOutputStream(tmp);
+        os.write(testPair.zipped);
+        os.close();
+        testCorrectness(testPair.buf, new MappedSeekableInputStream(tmp));
+        // small segments, so that inflating crosses from one to the next
+        RandomAccessFile raf = new RandomAccessFile(tmp, "r");
+        SeekableInputStream sis = new MappedSeekableInputStream(new MappedFile(raf.getChannel(), 100003));
+        raf.close();
+        testCorrectness(testPair.buf, sis);
+    }
+
+    @Test
+    public void testGzipCompressible() throws Exception {
+        TestPair testPair = new TestPair(true);
+        testCorrectness(testPair.buf, new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length));
+    }
+
+    @Test
+    public void testWindowCacheSizes() throws Exception {
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 262144);
+        index.open(sis);
+        index.setWindowCacheSize(0);
+        checkRandomReads(testPair.buf, index);
+        index.setWindowCacheSize(2);
+        checkRandomReads(testPair.buf, index);
+    }
+
+    @Test
+    public void testSharedChunkCache() throws Exception {
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 1048576);
+        ByteArrayOutputStream indexData = new ByteArrayOutputStream();
+        RandomAccessGZip.writeIndex(index, indexData);
+
+        ChunkCache cache = new ChunkCache(4 << 20, 32768, true);
+        index.open(sis);
+        index.setChunkCache(cache, "test");
+        checkRandomReads(testPair.buf, index);
+
+        RandomAccessGZip.Index other = RandomAccessGZip.readIndex(new ByteArrayInputStream(indexData.toByteArray()));
+        other.open(new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length));
+        other.setChunkCache(cache, "test");
+        long hits = cache.hits();
+        checkRandomReads(testPair.buf, other);
+        assertTrue(cache.hits() > hits);
+    }
+
+    @Test
+    public void testConcurrentPositionalReads() throws Exception {
+        final TestPair testPair = new TestPair(true);
+        File tmp = File.createTempFile("zip-test", ".gz");
+        tmp.deleteOnExit();
+        OutputStream os = new FileOutputStream(tmp);
+        os.write(testPair.zipped);
+        os.close();
+        SeekableInputStream sis = new FileSeekableInputStream(new RandomAccessFile(tmp, "r"));
+        final RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 262144);
+        index.open(sis);
+        index.setMaxExtractors(3);
+
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[6];
+        for(int t = 0; t < threads.length; ++t) {
+            final long seed = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        byte[] dest = new byte[20000];
+                        for(int i = 0; i < 50; ++i) {
+                            int origin = r.nextInt(testPair.buf.length - dest.length);
+                            int n = index.read(origin, dest, 0, dest.length);
+                            for(int j = 0; j < n; ++j) {
+                                assertEquals(testPair.buf[origin + j], dest[j]);
+                            }
+                        }
+                    } catch(Throwable e) {
+                        synchronized(failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        if(failure[0] != null)
+            throw new AssertionError(failure[0]);
+        index.close();
+    }
+
+    @Test
+    public void testParallelDecompress() throws Exception {
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 262144);
+        index.open(sis);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        index.decompress(Channels.newChannel(bos), pool);
+        assertTrue(Arrays.equals(testPair.buf, bos.toByteArray()));
+
+        // intervals longer than what's buffered are written a piece at a time
+        RandomAccessGZip.Index sparse = RandomAccessGZip.index(new ByteArrayInputStream(testPair.zipped), 8 << 20);
+        sparse.open(sis);
+        bos = new ByteArrayOutputStream();
+        sparse.decompress(Channels.newChannel(bos), pool);
+        pool.shutdown();
+        assertTrue(Arrays.equals(testPair.buf, bos.toByteArray()));
+        sparse.close();
+
+        File tmp = File.createTempFile("zip-test", ".out");
+        tmp.deleteOnExit();
+        index.decompressTo(tmp);
+        assertEquals(testPair.buf.length, tmp.length());
+        DataInputStream in = new DataInputStream(new FileInputStream(tmp));
+        byte[] written = new byte[testPair.buf.length];
+        in.readFully(written);
+        in.close();
+        assertTrue(Arrays.equals(testPair.buf, written));
+        index.close();
+
+        ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        new GZIPOutputStream(empty).close();
+        sis = new ByteArraySeekableInputStream(empty.toByteArray(), 0, empty.size());
+        index = RandomAccessGZip.index(new ByteArrayInputStream(empty.toByteArray()), 262144);
+        index.open(sis);
+        assertEquals(0, index.length());
+        bos = new ByteArrayOutputStream();
+        index.decompress(Channels.newChannel(bos));
+        assertEquals(0, bos.size());
+        index.decompressTo(tmp);
+        assertEquals(0, tmp.length());
+        index.close();
+    }
+
+    @Test
+    public void testParallelChunks() throws Exception {
+        final TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 262144);
+        index.open(sis);
+        final CheckpointTable table = index.table();
+
+        final AtomicLong total = new AtomicLong();
+        Stream<DecompressedChunk> chunks = index.chunks(100000).parallel();
+        try {
+            chunks.forEach(new Consumer<DecompressedChunk>() {
+                public void accept(DecompressedChunk chunk) {
+                    ByteBuffer data = chunk.data();
+                    int n = data.remaining();
+                    for(int i = 0; i < n; ++i) {
+                        assertEquals(testPair.buf[(int) chunk.offset() + i], data.get());
+                    }
+                    assertEquals(table.find(chunk.offset()), table.find(chunk.offset() + n - 1));
+                    total.addAndGet(n);
+                }
+            });
+        } finally {
+            chunks.close();
+        }
+        assertEquals(testPair.buf.length, total.get());
+        index.close();
+    }
+
+    @Test
+    public void testIndexFile() throws Exception {
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 262144);
+
+        ByteArrayOutputStream indexData = new ByteArrayOutputStream();
+        RandomAccessGZip.writeIndex(index, indexData);
+        byte[] indexBytes = indexData.toByteArray();
+
+        index = RandomAccessGZip.readIndex(new ByteArrayInputStream(indexBytes));
+        assertEquals(testPair.zipped.length, index.sourceLength());
+        index.open(sis);
+        checkRandomReads(testPair.buf, index);
+
+        File tmp = File.createTempFile("index-test", ".jzi");
+        tmp.deleteOnExit();
+        OutputStream os = new FileOutputStream(tmp);
+        os.write(indexBytes);
+        os.close();
+        index = RandomAccessGZip.mapIndex(tmp);
+        assertEquals(testPair.zipped.length, index.sourceLength());
+        index.open(sis);
+        checkRandomReads(testPair.buf, index);
+
+        indexBytes[40] ^= 1;
+        try {
+            RandomAccessGZip.readIndex(new ByteArrayInputStream(indexBytes));
+            fail("Corrupt index not detected");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPipelinedIndex() throws Exception {
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index serial = RandomAccessGZip.index(
+                new ByteArrayInputStream(testPair.zipped), 262144, new NullProgressListener(), false);
+        RandomAccessGZip.Index pipelined = RandomAccessGZip.index(
+                new ByteArrayInputStream(testPair.zipped), 262144, new NullProgressListener(), true);
+        ByteArrayOutputStream serialBytes = new ByteArrayOutputStream();
+        RandomAccessGZip.writeIndex(serial, serialBytes);
+        ByteArrayOutputStream pipelinedBytes = new ByteArrayOutputStream();
+        RandomAccessGZip.writeIndex(pipelined, pipelinedBytes);
+        assertTrue(Arrays.equals(serialBytes.toByteArray(), pipelinedBytes.toByteArray()));
+        pipelined.open(sis);
+        checkRandomReads(testPair.buf, pipelined);
+    }
+
+    @Test
+    public void testAdaptiveCheckpoints() throws Exception {
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 4194304);
+        index.open(sis);
+        int before = index.table().size();
+        index.setAdaptiveBudget(1048576);
+
+        Random r = new Random(8765L);
+        byte[] dest = new byte[1000];
+        for(int i = 0; i < 20; ++i) {
+            int origin = 6000000 + r.nextInt(2000000);
+            int n = index.read(origin, dest, 0, dest.length);
+            for(int j = 0; j < n; ++j) {
+                assertEquals(testPair.buf[origin + j], dest[j]);
+            }
+        }
+        assertTrue(index.table().size() > before);
+        checkRandomReads(testPair.buf, index);
+
+        int after = index.table().size();
+        ByteArrayOutputStream indexData = new ByteArrayOutputStream();
+        RandomAccessGZip.writeIndex(index, indexData);
+        index = RandomAccessGZip.readIndex(new ByteArrayInputStream(indexData.toByteArray()));
+        assertEquals(after, index.table().size());
+        index.open(sis);
+        checkRandomReads(testPair.buf, index);
+    }
+
+    @Test
+    public void testSparseWindows() throws Exception {
+        int winsize = CheckpointTable.WINSIZE;
+        Random r = new Random(66L);
+        byte[] window = new byte[winsize];
+        r.nextBytes(window);
+        // data that copies two runs of the window and nothing else of it
+        byte[] data = new byte[40400];
+        r.nextBytes(data);
+        System.arraycopy(window, 1000, data, 0, 300);
+        System.arraycopy(window, 20000, data, 300, 100);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setDictionary(window);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] raw = new byte[data.length + 1024];
+        int rawLength = deflater.deflate(raw);
+        deflater.end();
+        Memory in = new Memory(rawLength);
+        in.write(0, raw, 0, rawLength);
+
+        ZRan.WindowProbe probe = new ZRan.WindowProbe(window.clone(), 0, 0);
+        probe.feed(in, rawLength);
+        assertTrue(probe.done());
+        byte[] sparse = probe.sparseWindow();
+        probe.close();
+        int kept = 0;
+        for(int j = 0; j < winsize; ++j) {
+            if((j >= 1000 && j < 1300) || (j >= 20000 && j < 20100))
+                assertEquals(window[j], sparse[j]);
+            else if(sparse[j] != 0)
+                kept++;
+        }
+        // give or take the odd short match that happens to be in random data
+        assertTrue("Kept " + kept + " unused bytes", kept < 64);
+
+        // data that never refers back: the stored windows all but vanish
+        TestPair testPair = new TestPair();
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 262144);
+        assertTrue(index.table().size() > 30);
+        ByteArrayOutputStream indexData = new ByteArrayOutputStream();
+        RandomAccessGZip.writeIndex(index, indexData);
+        assertTrue("Index of " + indexData.size() + " bytes",
+                indexData.size() < (long) index.table().size() * winsize / 16);
+        RandomAccessGZip.Index read = RandomAccessGZip.readIndex(new ByteArrayInputStream(indexData.toByteArray()));
+        read.open(sis);
+        checkRandomReads(testPair.buf, read);
+    }
+
+    @Test
+    public void testIndexBudget() throws Exception {
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, Long.MAX_VALUE, 65536, new NullProgressListener(), false);
+        assertTrue(index.table().size() >= testPair.zipped.length / 131072);
+        index.open(sis);
+        checkRandomReads(testPair.buf, index);
+
+        long budget = index.table().bytes() / 3;
+        RandomAccessGZip.Index thin = RandomAccessGZip.thin(index, budget);
+        assertTrue(thin.table().bytes() <= budget);
+        assertTrue(thin.table().size() < index.table().size());
+        thin.open(sis);
+        checkRandomReads(testPair.buf, thin);
+
+        sis.seek(0);
+        RandomAccessGZip.Index within = RandomAccessGZip.indexWithin(sis, 100000, new NullProgressListener());
+        assertTrue(within.table().bytes() <= 100000);
+        assertTrue(within.table().size() > 1);
+        within.open(sis);
+        checkRandomReads(testPair.buf, within);
+
+        try {
+            RandomAccessGZip.thin(index, 10);
+            fail("Budget too small not detected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testExtendIndex() throws Exception {
+        TestPair testPair = new TestPair(true);
+        int half = testPair.buf.length / 2;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GZIPOutputStream zos = new GZIPOutputStream(baos, true);
+        zos.write(testPair.buf, 0, half);
+        zos.flush();
+        byte[] flushed = baos.toByteArray();
+        zos.write(testPair.buf, half, testPair.buf.length - half);
+        zos.close();
+        byte[] whole = baos.toByteArray();
+
+        // stopped at a flush
+        RandomAccessGZip.Index index = RandomAccessGZip.indexGrowing(new ByteArrayInputStream(flushed), 262144);
+        assertEquals(half, index.length());
+        assertTrue(index.resumePoint() != null && !index.resumePoint().memberStart());
+        checkExtended(testPair.buf, index, whole);
+
+        // stopped inside a deflate block
+        byte[] cut = Arrays.copyOf(whole, whole.length / 3);
+        index = RandomAccessGZip.indexGrowing(new ByteArrayInputStream(cut), 262144);
+        assertTrue(index.length() > 0);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(cut, 0, cut.length);
+        index.open(sis);
+        byte[] dest = new byte[1000];
+        int n = index.read(index.length() - dest.length, dest, 0, dest.length);
+        for(int j = 0; j < n; ++j) {
+            assertEquals(testPair.buf[(int) index.length() - dest.length + j], dest[j]);
+        }
+        checkExtended(testPair.buf, index, whole);
+
+        // another member appended
+        baos = new ByteArrayOutputStream();
+        zos = new GZIPOutputStream(baos);
+        zos.write(testPair.buf, 0, half);
+        zos.close();
+        byte[] first = baos.toByteArray();
+        zos = new GZIPOutputStream(baos);
+        zos.write(testPair.buf, half, testPair.buf.length - half);
+        zos.close();
+        index = RandomAccessGZip.index(new ByteArrayInputStream(first), 262144);
+        checkExtended(testPair.buf, index, baos.toByteArray());
+    }
+
+    @Test
+    public void testLazyIndex() throws Exception {
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.lazyIndex(sis, 262144);
+        assertTrue(!index.isComplete());
+        assertTrue(index.frontier() < testPair.buf.length / 2);
+
+        int origin = testPair.buf.length / 2;
+        byte[] dest = new byte[1000];
+        int n = index.read(origin, dest, 0, dest.length);
+        assertEquals(dest.length, n);
+        for(int j = 0; j < n; ++j) {
+            assertEquals(testPair.buf[origin + j], dest[j]);
+        }
+        assertTrue(index.frontier() > origin);
+        assertTrue(!index.isComplete());
+
+        ByteArrayOutputStream indexData = new ByteArrayOutputStream();
+        RandomAccessGZip.writeIndex(index, indexData);
+        RandomAccessGZip.Index partial = RandomAccessGZip.readIndex(new ByteArrayInputStream(indexData.toByteArray()));
+        assertEquals(index.frontier(), partial.length());
+        assertTrue(!index.isComplete());
+        assertTrue(partial.length() < testPair.buf.length);
+        assertEquals(index.frontier(), index.length());
+        RandomAccessGZip.Index extended = partial.extend(sis);
+        extended.open(sis);
+        checkRandomReads(testPair.buf, extended);
+
+        index.buildInBackground();
+        index.ensureComplete();
+        assertTrue(index.isComplete());
+        checkRandomReads(testPair.buf, index);
+
+        index = RandomAccessGZip.lazyIndex(sis, 262144);
+        index.seek(0);
+        byte[] all = new byte[testPair.buf.length];
+        readFully(index, all);
+        assertTrue(Arrays.equals(testPair.buf, all));
+        assertEquals(-1, index.read());
+
+        // skipping goes past what's indexed, and seeking past it leaves nothing available yet
+        index = RandomAccessGZip.lazyIndex(sis, 262144);
+        index.seek(0);
+        long frontier = index.length();
+        assertEquals(frontier + 1000, index.skip(frontier + 1000));
+        assertTrue(index.length() > frontier + 1000);
+        assertEquals(testPair.buf[(int) frontier + 1000] & 0xff, index.read());
+        index.seek(index.length() + 1000);
+        assertEquals(0, index.available());
+        long at = index.length() + 1000;
+        assertEquals(1000, index.skip(1000));
+        assertEquals(testPair.buf[(int) at + 1000] & 0xff, index.read());
+        index.seek(testPair.buf.length + 1000);
+        assertEquals(0, index.available());
+        assertEquals(0, index.skip(1000));
+        assertEquals(-1, index.read());
+    }
+
+    @Test
+    public void testCloseStopsBuilder() throws Exception {
+        TestPair testPair = new TestPair(true);
+        final AtomicLong late = new AtomicLong();
+        final CountDownLatch building = new CountDownLatch(1);
+        /* 0 while lazyIndex indexes the start, 1 while the builder goes on, 2 once closed */
+        final int[] phase = new int[1];
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length) {
+            public int read(long position, byte[] b, int off, int len) throws IOException {
+                int now;
+                synchronized(phase) {
+                    now = phase[0];
+                }
+                if(now == 2)
+                    late.incrementAndGet();
+                if(now == 1) {
+                    building.countDown();
+                    try {
+                        Thread.sleep(1);
+                    } catch(InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return super.read(position, b, off, len);
+            }
+        };
+        RandomAccessGZip.Index index = RandomAccessGZip.lazyIndex(sis, 262144);
+        synchronized(phase) {
+            phase[0] = 1;
+        }
+        index.buildInBackground();
+        building.await();
+        index.close();
+        synchronized(phase) {
+            phase[0] = 2;
+        }
+        Thread.sleep(200);
+        assertEquals(0, late.get());
+    }
+
+    @Test
+    public void testLazyIndexChunkCache() throws Exception {
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.lazyIndex(sis, 1048576);
+        index.setChunkCache(new ChunkCache(16 << 20, 1048576, false), "lazy");
+        long end = index.length();
+        assertTrue(end < testPair.buf.length);
+        byte[] dest = new byte[16];
+        assertEquals(1, index.read(end - 1, dest, 0, 1));
+        assertEquals(testPair.buf[(int) end - 1], dest[0]);
+
+        /* the chunk around the old end was cached short: past that it must be inflated again */
+        long position = (end / 1048576 + 1) * 1048576 - dest.length;
+        assertTrue(position > end);
+        assertEquals(dest.length, index.read(position, dest, 0, dest.length));
+        for(int j = 0; j < dest.length; ++j) {
+            assertEquals(testPair.buf[(int) position + j], dest[j]);
+        }
+        index.ensureComplete();
+        checkRandomReads(testPair.buf, index);
+    }
+
+    private void checkExtended(byte[] buf, RandomAccessGZip.Index index, byte[] grown) throws IOException {
+        SeekableInputStream sis = new ByteArraySeekableInputStream(grown, 0, grown.length);
+        RandomAccessGZip.Index extended = index.extend(sis);
+        assertEquals(grown.length, extended.sourceLength());
+        assertTrue(extended.table().size() > index.table().size());
+        RandomAccessGZip.Index again = extended.extend(sis);
+        assertEquals(buf.length, again.length());
+        assertEquals(extended.table().size(), again.table().size());
+
+        ByteArrayOutputStream indexData = new ByteArrayOutputStream();
+        RandomAccessGZip.writeIndex(extended, indexData);
+        extended = RandomAccessGZip.readIndex(new ByteArrayInputStream(indexData.toByteArray()));
+        extended.open(sis);
+        checkRandomReads(buf, extended);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 262144);
+        index.open(sis);
+        Metrics metrics = new Metrics();
+        index.setMetrics(metrics);
+
+        Random r = new Random(97531L);
+        byte[] buf = new byte[10000];
+        long delivered = 0;
+        int reads = 50;
+        for(int i = 0; i < reads; ++i) {
+            long offset = r.nextInt(testPair.buf.length - buf.length);
+            int n = (i % 2 == 0) ? index.read(offset, buf, 0, buf.length) : readAt(index, offset, buf);
+            assertTrue(n > 0);
+            delivered += n;
+        }
+        assertEquals(delivered, metrics.bytesDelivered());
+        assertEquals(reads, metrics.readLatency().count());
+        assertTrue(metrics.seeks() > 0);
+        assertTrue(metrics.restores() > 0 && metrics.restores() <= metrics.seeks());
+        assertEquals(metrics.seeks(), metrics.seekLatency().count());
+        assertTrue(metrics.bytesDiscarded() > 0);
+        assertTrue(metrics.bytesInflated() >= delivered + metrics.bytesDiscarded());
+        assertTrue(metrics.compressedBytesRead() > 0);
+        assertTrue(metrics.inflateCalls() > 0);
+        assertTrue(metrics.readLatency().percentile(0.5) <= metrics.readLatency().percentile(1));
+
+        // nothing is counted once metrics are off
+        index.setMetrics(null);
+        index.read(0, buf, 0, buf.length);
+        assertEquals(delivered, metrics.bytesDelivered());
+        index.close();
+    }
+
+    private static int readAt(RandomAccessGZip.Index index, long offset, byte[] buf) throws IOException {
+        index.seek(offset);
+        return index.read(buf, 0, buf.length);
+    }
+
+    @Test
+    public void testReadRanges() throws Exception {
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 262144);
+        index.open(sis);
+
+        Random r = new Random(2468L);
+        int count = 300;
+        long[] offsets = new long[count];
+        ByteBuffer[] destinations = new ByteBuffer[count];
+        for(int i = 0; i < count; ++i) {
+            // clustered, overlapping, and a few past the end
+            offsets[i] = (i % 50 == 0) ? testPair.buf.length - 100 + r.nextInt(200)
+                    : (r.nextInt(8) * (long) testPair.buf.length / 8) + r.nextInt(100000);
+            destinations[i] = (i % 2 == 0) ? ByteBuffer.allocate(1 + r.nextInt(5000))
+                    : ByteBuffer.allocateDirect(1 + r.nextInt(5000));
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for(ForkJoinPool p : new ForkJoinPool[] {null, pool}) {
+                for(ByteBuffer dst : destinations)
+                    dst.clear();
+                index.readRanges(offsets, destinations, p);
+                for(int i = 0; i < count; ++i) {
+                    int expected = (int) Math.max(0, Math.min(destinations[i].capacity(), testPair.buf.length - offsets[i]));
+                    assertEquals(expected, destinations[i].position());
+                    for(int j = 0; j < expected; ++j) {
+                        assertEquals(testPair.buf[(int) offsets[i] + j], destinations[i].get(j));
+                    }
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDirectBuffersAndTransfer() throws Exception {
+        TestPair testPair = new TestPair(true);
+        File tmp = File.createTempFile("zip-test", ".gz");
+        tmp.deleteOnExit();
+        OutputStream os = new FileOutputStream(tmp);
+        os.write(testPair.zipped);
+        os.close();
+        FileInputStream fis = new FileInputStream(tmp);
+        SeekableInputStream sis = new FileChannelSeekableInputStream(fis.getChannel());
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 262144);
+        index.open(sis);
+
+        Random r = new Random(4321L);
+        ByteBuffer direct = ByteBuffer.allocateDirect(100000);
+        ByteBuffer heap = ByteBuffer.allocate(100000);
+        for(int i = 0; i < 50; ++i) {
+            int origin = r.nextInt(testPair.buf.length);
+            ByteBuffer dst = (i % 2 == 0) ? direct : heap;
+            dst.clear();
+            if(i % 4 < 2) {
+                index.seek(origin);
+                while(dst.hasRemaining() && index.read(dst) > 0) { }
+            } else {
+                while(dst.hasRemaining() && index.read(origin + dst.position(), dst) > 0) { }
+            }
+            dst.flip();
+            for(int j = 0; dst.hasRemaining(); ++j) {
+                assertEquals(testPair.buf[origin + j], dst.get());
+            }
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(bos);
+        assertEquals(3000000, index.transferTo(5000000, 3000000, channel));
+        assertEquals(testPair.buf.length - 10000000, index.transferTo(10000000, 3000000, channel));
+        byte[] sent = bos.toByteArray();
+        assertTrue(Arrays.equals(Arrays.copyOfRange(testPair.buf, 5000000, 8000000), Arrays.copyOf(sent, 3000000)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(testPair.buf, 10000000, testPair.buf.length),
+                Arrays.copyOfRange(sent, 3000000, sent.length)));
+        index.close();
+        fis.close();
+    }
+
+    @Test
+    public void testForwardSkips() throws Exception {
+        TestPair testPair = new TestPair();
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 1048576);
+        index.open(sis);
+        index.seek(0);
+
+        Random r = new Random(31337L);
+        byte[] dest = new byte[1000];
+        long pos = 0;
+        while(pos + dest.length < testPair.buf.length) {
+            readFully(index, dest);
+            for(int j = 0; j < dest.length; ++j) {
+                assertEquals(dest[j], testPair.buf[(int)pos + j]);
+            }
+            pos += dest.length;
+            pos += index.skip(r.nextInt(100000));
+        }
+        index.close();
+    }
+
+    private static void readFully(SeekableInputStream in, byte[] dest) throws IOException {
+        int rem = dest.length;
+        int offset = 0;
+        while(rem > 0) {
+            int n = in.read(dest, offset, rem);
+            rem -= n;
+            offset += n;
+        }
+    }
+
+    @Test
+    public void testMultiMember() throws Exception {
+        TestPair testPair = new TestPair(true);
+        byte[] buf = testPair.buf;
+        // uneven members, an empty one, and zero padding at the end
+        int[] ends = {100000, 100000, 1500000, 1600000, 4000000, 7000000, 7100000, buf.length};
+        long[] members = new long[ends.length];
+        ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+        int start = 0;
+        for(int i = 0; i < ends.length; ++i) {
+            members[i] = concatenated.size();
+            GZIPOutputStream zos = new GZIPOutputStream(concatenated);
+            zos.write(buf, start, ends[i] - start);
+            zos.finish();
+            start = ends[i];
+        }
+        concatenated.write(new byte[16]);
+        byte[] zipped = concatenated.toByteArray();
+
+        testCorrectness(buf, new ByteArraySeekableInputStream(zipped, 0, zipped.length));
+
+        SeekableInputStream sis = new ByteArraySeekableInputStream(zipped, 0, zipped.length);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, members, 262144, pool);
+        pool.shutdown();
+        assertEquals(zipped.length - 16, index.sourceLength());
+        index.open(sis);
+        checkRandomReads(buf, index);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        index.decompress(Channels.newChannel(bos));
+        assertTrue(Arrays.equals(buf, bos.toByteArray()));
+        index.close();
+    }
+
+    @Test
+    public void testBgzf() throws Exception {
+        TestPair testPair = new TestPair(true);
+        byte[] bgzf = bgzf(testPair.buf);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(bgzf, 0, bgzf.length);
+
+        RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 1048576);
+        int blocks = index.table().size();
+        assertEquals((testPair.buf.length + 65279) / 65280 + 1, blocks);
+        assertEquals(bgzf.length, index.sourceLength());
+        index.open(sis);
+        checkRandomReads(testPair.buf, index);
+
+        ByteArrayOutputStream gzi = new ByteArrayOutputStream();
+        RandomAccessGZip.writeGzi(index, gzi);
+        byte[] gziBytes = gzi.toByteArray();
+        assertEquals(8 + 16 * (blocks - 1), gziBytes.length);
+        index = RandomAccessGZip.readGzi(new ByteArrayInputStream(gziBytes), sis);
+        assertEquals(blocks, index.table().size());
+        index.open(sis);
+        checkRandomReads(testPair.buf, index);
+
+        // a .gzi that lists only some blocks: the rest are found in the data
+        ByteBuffer partial = ByteBuffer.wrap(Arrays.copyOf(gziBytes, 8 + 16 * 10)).order(ByteOrder.LITTLE_ENDIAN);
+        partial.putLong(0, 10);
+        index = RandomAccessGZip.readGzi(new ByteArrayInputStream(partial.array()), sis);
+        assertEquals(blocks, index.table().size());
+        index.open(sis);
+        checkRandomReads(testPair.buf, index);
+    }
+
+    /* BGZF blocks of 65280 bytes of data each, then the empty end-of-file block */
+    private static byte[] bgzf(byte[] buf) throws IOException {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] deflated = new byte[70000];
+        for(int start = 0; ; start += 65280) {
+            // the last round writes the end-of-file block
+            start = Math.min(start, buf.length);
+            int len = Math.min(65280, buf.length - start);
+            deflater.reset();
+            deflater.setInput(buf, start, len);
+            deflater.finish();
+            int n = 0;
+            while(!deflater.finished())
+                n += deflater.deflate(deflated, n, deflated.length - n);
+            CRC32 crc = new CRC32();
+            crc.update(buf, start, len);
+            ByteBuffer block = ByteBuffer.allocate(18 + n + 8).order(ByteOrder.LITTLE_ENDIAN);
+            block.put(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0});
+            block.putShort((short) (18 + n + 8 - 1));
+            block.put(deflated, 0, n);
+            block.putInt((int) crc.getValue());
+            block.putInt(len);
+            res.write(block.array());
+            if(len == 0)
+                break;
+        }
+        return res.toByteArray();
+    }
+
     private void testCorrectness(byte[] buf, SeekableInputStream sis) throws Exception {
         RandomAccessGZip.Index index = RandomAccessGZip.index(sis, 1048576);
 
@@ -45,6 +833,10 @@ public class RandomAccessGZipTest {
         index = (RandomAccessGZip.Index) new ObjectInputStream(new ByteArrayInputStream(indexBytes)).readObject();
         index.open(sis);
 
+        checkRandomReads(buf, index);
+    }
+
+    private void checkRandomReads(byte[] buf, RandomAccessGZip.Index index) throws IOException {
         assertEquals(buf.length, index.length());
 
         Random r = new Random(56738138L);
@@ -69,13 +861,203 @@ public class RandomAccessGZipTest {
         }
     }
 
+    @Test
+    public void testJavaInflater() throws Exception {
+        for(boolean compressible : new boolean[] {true, false}) {
+            TestPair testPair = new TestPair(compressible);
+            SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+            CheckpointTable index = ZRan.build_index(new ByteArrayInputStream(testPair.zipped), 262144,
+                    Long.MAX_VALUE, new long[3], new NullProgressListener(), false);
+            ZRan.Extractor extractor = new ZRan.Extractor(sis, InflateStream.raw("java"));
+            Random r = new Random(2024L);
+            Memory dest = new Memory(100000);
+            for(int i = 0; i < 200; ++i) {
+                int len = 1 + r.nextInt(100000);
+                int origin = r.nextInt(testPair.buf.length - len);
+                extractor.seek(index, origin);
+                int n = 0;
+                while(n < len)
+                    n += extractor.extract(dest.share(n), len - n);
+                byte[] got = dest.getByteArray(0, len);
+                for(int j = 0; j < len; ++j)
+                    assertEquals(testPair.buf[origin + j], got[j]);
+            }
+            extractor.close();
+        }
+
+        /* stop for stop, the same as zlib, in input and output of any size */
+        Random r = new Random(4242L);
+        byte[] text = new TestPair(true).buf;
+        for(int level : new int[] {0, 1, 6, 9}) {
+            byte[] buf = Arrays.copyOf(text, 300000 + r.nextInt(300000));
+            Deflater deflater = new Deflater(level, true);
+            deflater.setInput(buf);
+            deflater.finish();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] chunk = new byte[65536];
+            while(!deflater.finished())
+                baos.write(chunk, 0, deflater.deflate(chunk));
+            byte[] raw = baos.toByteArray();
+            Memory input = new Memory(raw.length);
+            input.write(0, raw, 0, raw.length);
+
+            InflateStream[] streams = {InflateStream.raw("jna"), InflateStream.raw("java")};
+            Memory[] outputs = {new Memory(buf.length + 1), new Memory(buf.length + 1)};
+            int[] ins = new int[2];
+            int[] outs = new int[2];
+            int[] rets = new int[2];
+            while(rets[0] != ZLib.Z_STREAM_END) {
+                int inLen = 1 + r.nextInt(5000);
+                int outLen = 1 + r.nextInt(50000);
+                for(int k = 0; k < 2; ++k) {
+                    if(streams[k].availIn() == 0) {
+                        int n = Math.min(inLen, raw.length - ins[k]);
+                        streams[k].setInput(input.share(ins[k]), n);
+                        ins[k] += n;
+                    }
+                    int n = Math.min(outLen, buf.length + 1 - outs[k]);
+                    streams[k].setOutput(outputs[k].share(outs[k]), n);
+                    rets[k] = streams[k].inflate(ZLib.Z_BLOCK);
+                    outs[k] += n - streams[k].availOut();
+                }
+                assertEquals(rets[0], rets[1]);
+                assertEquals(outs[0], outs[1]);
+                if((streams[0].dataType() & 128) != 0) {
+                    assertEquals(streams[0].dataType(), streams[1].dataType());
+                    assertEquals(ins[0] - streams[0].availIn(), ins[1] - streams[1].availIn());
+                }
+            }
+            assertEquals(buf.length, outs[1]);
+            assertTrue(Arrays.equals(buf, outputs[1].getByteArray(0, buf.length)));
+            for(InflateStream stream : streams)
+                stream.inflateEnd();
+        }
+    }
+
+    /* also run by itself with -Djzran.zlib.backend=java, where no zlib loads: see build.xml */
+    @Test
+    public void testJavaBackend() throws Exception {
+        if("java".equals(System.getProperty("jzran.zlib.backend")))
+            assertEquals("java", InflateStream.backend());
+        byte[] buf = new TestPair(true).buf;
+        int half = buf.length / 2;
+
+        // a member whose header is longer than a read of input, then another one
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        zipped.write(new byte[] {0x1f, (byte) 0x8b, 8, 8, 0, 0, 0, 0, 0, (byte) 0xff});
+        byte[] name = new byte[100000];
+        Arrays.fill(name, (byte) 'n');
+        zipped.write(name);
+        zipped.write(0);
+        Deflater deflater = new Deflater(6, true);
+        deflater.setInput(buf, 0, half);
+        deflater.finish();
+        byte[] deflated = new byte[65536];
+        while(!deflater.finished())
+            zipped.write(deflated, 0, deflater.deflate(deflated));
+        CRC32 crc = new CRC32();
+        crc.update(buf, 0, half);
+        ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue()).putInt(half);
+        zipped.write(trailer.array());
+        GZIPOutputStream zos = new GZIPOutputStream(zipped);
+        zos.write(buf, half, buf.length - half);
+        zos.close();
+        byte[] data = zipped.toByteArray();
+
+        RandomAccessGZip.Index index = RandomAccessGZip.index(new ByteArrayInputStream(data), 262144);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(data, 0, data.length);
+        index.open(sis);
+        checkRandomReads(buf, index);
+        index.close();
+
+        // a wrong CRC is caught
+        data[data.length - 5] ^= 1;
+        try {
+            RandomAccessGZip.index(new ByteArrayInputStream(data), 262144);
+            fail("Wrong CRC not detected");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPooledBuffers() throws Exception {
+        NativePool pool = new NativePool(1 << 20, 2);
+        NativePool.Buffer a = pool.take(40000);
+        assertEquals(65536, a.getSize());
+        pool.give(a);
+        assertEquals(65536, pool.idleBytes());
+        assertTrue(pool.take(65536) == a);
+        assertEquals(0, pool.idleBytes());
+        pool.give(a);
+        NativePool.Buffer big = pool.take(1 << 20);
+        pool.give(big);
+        /* beyond the limit: freed rather than kept */
+        assertEquals(65536, pool.idleBytes());
+        pool.clear();
+        assertEquals(0, pool.idleBytes());
+
+        TestPair testPair = new TestPair(true);
+        SeekableInputStream sis = new ByteArraySeekableInputStream(testPair.zipped, 0, testPair.zipped.length);
+        RandomAccessGZip.Index index = RandomAccessGZip.index(new ByteArrayInputStream(testPair.zipped), 262144);
+        index.open(sis);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Random r = new Random(77L);
+        long[] offsets = new long[500];
+        for(int i = 0; i < offsets.length; ++i)
+            offsets[i] = r.nextInt(testPair.buf.length - 5000);
+        byte[] dest = new byte[4096];
+        long allocated = 0;
+        int wrong = 0;
+        for(int round = 0; round < 5; ++round) {
+            long before = allocatedBytes(threads);
+            for(long offset : offsets) {
+                index.seek(offset);
+                readFully(index, dest);
+                if(dest[0] != testPair.buf[(int) offset] ||
+                        index.read() != (testPair.buf[(int) offset + dest.length] & 0xff))
+                    wrong++;
+            }
+            allocated = allocatedBytes(threads) - before;
+        }
+        index.close();
+        assertEquals(0, wrong);
+        /* nothing in steady state, give or take the odd allocation of the JVM */
+        if(allocated >= 0)
+            assertTrue("Allocated " + allocated + " bytes", allocated < 16 * offsets.length);
+    }
+
+    /* bytes allocated by this thread, or -1 if the JVM doesn't tell */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if(!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
     private class TestPair {
         private final byte[] buf;
         private final byte[] zipped;
 
         private TestPair() throws IOException {
+            this(false);
+        }
+
+        private TestPair(boolean compressible) throws IOException {
             buf = new byte[10485739];
-            new Random().nextBytes(buf);
+            if(compressible) {
+                Random r = new Random(1234L);
+                String[] words = {"GET", "POST", "/index.html", "/api/v1/items", "200", "404", "user", "session"};
+                StringBuilder sb = new StringBuilder();
+                while(sb.length() < buf.length) {
+                    sb.append(r.nextInt(1000000)).append(' ')
+                            .append(words[r.nextInt(words.length)]).append(' ')
+                            .append(words[r.nextInt(words.length)]).append('\n');
+                }
+                System.arraycopy(sb.toString().getBytes("US-ASCII"), 0, buf, 0, buf.length);
+            } else {
+                new Random().nextBytes(buf);
+            }
 
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             GZIPOutputStream zos = new GZIPOutputStream(baos);